@@ -1,9 +1,17 @@
 package com.viafoura.metrics.datadog.transport;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import io.dropwizard.jackson.Discoverable;
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
 public interface AbstractTransportFactory extends Discoverable {
   public Transport build();
+
+  /**
+   * Build a transport recording its own metrics in the given registry, if it records any.
+   */
+  public default Transport build(MetricRegistry registry) {
+    return build();
+  }
 }
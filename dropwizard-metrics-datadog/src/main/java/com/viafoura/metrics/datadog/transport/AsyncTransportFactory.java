@@ -0,0 +1,49 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import io.dropwizard.util.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+@JsonTypeName("async")
+public class AsyncTransportFactory implements AbstractTransportFactory {
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AbstractTransportFactory transport = null;
+
+  @Min(1)
+  @JsonProperty
+  private int queueSize = 16;
+
+  @Min(1)
+  @JsonProperty
+  private int senderThreads = 1;
+
+  @NotNull
+  @JsonProperty
+  private AsyncTransport.OverflowPolicy overflowPolicy = AsyncTransport.OverflowPolicy.DROP_OLDEST;
+
+  @JsonProperty
+  private Duration shutdownTimeout = Duration.seconds(5);
+
+  public AsyncTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public AsyncTransport build(MetricRegistry registry) {
+    return new AsyncTransport.Builder(transport.build(registry))
+        .withMetricRegistry(registry)
+        .withQueueSize(queueSize)
+        .withSenderThreads(senderThreads)
+        .withOverflowPolicy(overflowPolicy)
+        .withShutdownTimeout((int) shutdownTimeout.toMilliseconds())
+        .build();
+  }
+}
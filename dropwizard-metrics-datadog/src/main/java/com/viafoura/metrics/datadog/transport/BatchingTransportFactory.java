@@ -0,0 +1,33 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+@JsonTypeName("batching")
+public class BatchingTransportFactory implements AbstractTransportFactory {
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AbstractTransportFactory transport = null;
+
+  @Min(1)
+  @JsonProperty
+  private int batchSize = 6;
+
+  public BatchingTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public BatchingTransport build(MetricRegistry registry) {
+    return new BatchingTransport.Builder(transport.build(registry))
+        .withBatchSize(batchSize)
+        .build();
+  }
+}
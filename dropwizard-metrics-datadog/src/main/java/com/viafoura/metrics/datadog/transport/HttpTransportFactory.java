@@ -1,5 +1,6 @@
 package com.viafoura.metrics.datadog.transport;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import io.dropwizard.util.Duration;
@@ -26,7 +27,13 @@ public class HttpTransportFactory implements AbstractTransportFactory {
   private String proxyHost;
 
   public HttpTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public HttpTransport build(MetricRegistry registry) {
     HttpTransport.Builder builder = new HttpTransport.Builder()
+        .withMetricRegistry(registry)
         .withApiKey(apiKey)
         .withConnectTimeout((int) connectTimeout.toMilliseconds())
         .withSocketTimeout((int) socketTimeout.toMilliseconds());
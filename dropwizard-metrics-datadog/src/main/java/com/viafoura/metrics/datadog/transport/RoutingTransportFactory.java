@@ -0,0 +1,68 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+@JsonTypeName("routing")
+public class RoutingTransportFactory implements AbstractTransportFactory {
+
+  /**
+   * The transport of the series matching no route
+   */
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AbstractTransportFactory transport = null;
+
+  /**
+   * Routes in order, a series going to the first route it matches
+   */
+  @Valid
+  @NotNull
+  @JsonProperty
+  private List<Route> routes = new ArrayList<Route>();
+
+  public RoutingTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public RoutingTransport build(MetricRegistry registry) {
+    final RoutingTransport.Builder builder = new RoutingTransport.Builder(transport.build(registry));
+    for (Route route : routes) {
+      final Transport target = route.transport.build(registry);
+      if (route.pattern != null) {
+        builder.withRoute(Pattern.compile(route.pattern), target);
+      } else if (route.tag != null) {
+        builder.withTagRoute(route.tag, target);
+      } else {
+        throw new IllegalArgumentException("A route needs a pattern or a tag");
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Series whose metric name contains a match of the pattern, or else carrying the tag
+   */
+  public static class Route {
+
+    @JsonProperty
+    private String pattern = null;
+
+    @JsonProperty
+    private String tag = null;
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private AbstractTransportFactory transport = null;
+  }
+}
@@ -1,5 +1,6 @@
 package com.viafoura.metrics.datadog.transport;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 
@@ -22,7 +23,13 @@ public class UdpTransportFactory implements AbstractTransportFactory {
   private String prefix = null;
 
   public UdpTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public UdpTransport build(MetricRegistry registry) {
     return new UdpTransport.Builder()
+        .withMetricRegistry(registry)
         .withPrefix(prefix)
         .withStatsdHost(statsdHost)
         .withPort(port)
@@ -8,12 +8,21 @@ import com.viafoura.metrics.datadog.DatadogReporter;
 import com.viafoura.metrics.datadog.DefaultMetricNameFormatterFactory;
 import com.viafoura.metrics.datadog.DynamicTagsCallbackFactory;
 import com.viafoura.metrics.datadog.MetricNameFormatterFactory;
+import com.viafoura.metrics.datadog.Precision;
 import com.viafoura.metrics.datadog.transport.AbstractTransportFactory;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import static com.viafoura.metrics.datadog.DatadogReporter.Expansion;
 
@@ -30,6 +39,13 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   @JsonProperty
   private DynamicTagsCallbackFactory dynamicTagsCallback = null;
 
+  /**
+   * Refresh dynamic tags every given period on a thread of their own, rather than on every report
+   */
+  @MinDuration(value = 0, inclusive = false)
+  @JsonProperty
+  private Duration dynamicTagsTtl = null;
+
   @JsonProperty
   private String prefix = null;
 
@@ -48,18 +64,257 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   @JsonProperty
   private AbstractTransportFactory transport = null;
 
+  @Min(1)
+  @JsonProperty
+  private int shards = 1;
+
+  @MinDuration(value = 0, inclusive = false)
+  @JsonProperty
+  private Duration timeBudget = null;
+
+  /**
+   * Priorities by metric name pattern, the first matching pattern giving the priority of a metric
+   */
+  @NotNull
+  @JsonProperty
+  private Map<String, Integer> priorities = new LinkedHashMap<String, Integer>();
+
+  @MinDuration(value = 0, inclusive = false)
+  @JsonProperty
+  private Duration gaugeTimeout = null;
+
+  /**
+   * The number of failed reports in a row after which a gauge is skipped, 0 to never skip gauges
+   */
+  @Min(0)
+  @JsonProperty
+  private int gaugeQuarantineFailures = 0;
+
+  @Min(1)
+  @JsonProperty
+  private int gaugeQuarantinePeriods = 10;
+
+  @JsonProperty
+  private boolean nativeCounts = false;
+
+  /**
+   * Report on wall-clock multiples of the frequency, stamping series with the boundary
+   */
+  @JsonProperty
+  private boolean alignedTicks = false;
+
+  /**
+   * The maximum random delay of aligned reports after the boundary
+   */
+  @NotNull
+  @MinDuration(0)
+  @JsonProperty
+  private Duration alignedTicksJitter = Duration.seconds(0);
+
+  /**
+   * The maximum factor the interval is stretched by while the transport is backpressured, 1 to
+   * never stretch it
+   */
+  @Min(1)
+  @JsonProperty
+  private int maxIntervalStretch = 1;
+
+  /**
+   * Sends taking longer stretch the interval, none to only react to failures
+   */
+  @MinDuration(value = 0, inclusive = false)
+  @JsonProperty
+  private Duration slowSend = null;
+
+  /**
+   * The number of distinct values reported per metric name and tag key, 0 for no limit
+   */
+  @Min(0)
+  @JsonProperty
+  private int cardinalityLimit = 0;
+
+  /**
+   * Tags dropped by metric name pattern, the first matching pattern rolling up a metric
+   */
+  @NotNull
+  @JsonProperty
+  private Map<String, List<String>> rollups = new LinkedHashMap<String, List<String>>();
+
+  /**
+   * Precision of the non-integral values of expansions, e.g. {@code 3 digits} or
+   * {@code 2 decimals}
+   */
+  @NotNull
+  @JsonProperty
+  private Map<Expansion, Precision> expansionPrecisions = new EnumMap<Expansion, Precision>(Expansion.class);
+
+  /**
+   * Precision of the non-integral values by metric name pattern, the first matching pattern
+   * taking precedence over the precision of expansions
+   */
+  @NotNull
+  @JsonProperty
+  private Map<String, Precision> precisions = new LinkedHashMap<String, Precision>();
+
+  /**
+   * Record the reporter's own metrics in the application registry, which reports them along
+   * with the application metrics
+   */
+  @JsonProperty
+  private boolean selfMetrics = false;
+
+  public String getHost() {
+    return host;
+  }
+
+  public List<String> getTags() {
+    return tags;
+  }
+
+  public DynamicTagsCallbackFactory getDynamicTagsCallback() {
+    return dynamicTagsCallback;
+  }
+
+  public Duration getDynamicTagsTtl() {
+    return dynamicTagsTtl;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  public EnumSet<Expansion> getExpansions() {
+    return expansions;
+  }
+
+  public MetricNameFormatterFactory getMetricNameFormatter() {
+    return metricNameFormatter;
+  }
+
+  public AbstractTransportFactory getTransport() {
+    return transport;
+  }
+
+  public int getShards() {
+    return shards;
+  }
+
+  public Duration getTimeBudget() {
+    return timeBudget;
+  }
+
+  public Map<String, Integer> getPriorities() {
+    return priorities;
+  }
+
+  public Duration getGaugeTimeout() {
+    return gaugeTimeout;
+  }
+
+  public int getGaugeQuarantineFailures() {
+    return gaugeQuarantineFailures;
+  }
+
+  public int getGaugeQuarantinePeriods() {
+    return gaugeQuarantinePeriods;
+  }
+
+  public boolean isNativeCounts() {
+    return nativeCounts;
+  }
+
+  public boolean isAlignedTicks() {
+    return alignedTicks;
+  }
+
+  public Duration getAlignedTicksJitter() {
+    return alignedTicksJitter;
+  }
+
+  public int getMaxIntervalStretch() {
+    return maxIntervalStretch;
+  }
+
+  public Duration getSlowSend() {
+    return slowSend;
+  }
+
+  public int getCardinalityLimit() {
+    return cardinalityLimit;
+  }
+
+  public Map<String, List<String>> getRollups() {
+    return rollups;
+  }
+
+  public Map<Expansion, Precision> getExpansionPrecisions() {
+    return expansionPrecisions;
+  }
+
+  public Map<String, Precision> getPrecisions() {
+    return precisions;
+  }
+
+  public boolean isSelfMetrics() {
+    return selfMetrics;
+  }
+
   public ScheduledReporter build(MetricRegistry registry) {
-    return DatadogReporter.forRegistry(registry)
-        .withTransport(transport.build())
+    DatadogReporter.Builder builder = DatadogReporter.forRegistry(registry)
+        .withTransport(transport.build(selfMetrics ? registry : null))
         .withHost(host)
         .withTags(tags)
         .withPrefix(prefix)
         .withExpansions(expansions)
         .withMetricNameFormatter(metricNameFormatter.build())
-        .withDynamicTagCallback(dynamicTagsCallback != null ? dynamicTagsCallback.build() : null)
         .filter(getFilter())
         .convertDurationsTo(getDurationUnit())
         .convertRatesTo(getRateUnit())
-        .build();
+        .withShards(shards);
+    if (dynamicTagsCallback != null && dynamicTagsTtl != null) {
+      builder.withDynamicTagCallback(dynamicTagsCallback.build(), dynamicTagsTtl.toNanoseconds(),
+          TimeUnit.NANOSECONDS);
+    } else if (dynamicTagsCallback != null) {
+      builder.withDynamicTagCallback(dynamicTagsCallback.build());
+    }
+    for (Map.Entry<String, Integer> priority : priorities.entrySet()) {
+      builder.withPriority(Pattern.compile(priority.getKey()), priority.getValue());
+    }
+    if (timeBudget != null) {
+      builder.withTimeBudget(timeBudget.toNanoseconds(), TimeUnit.NANOSECONDS);
+    }
+    if (gaugeTimeout != null) {
+      builder.withGaugeTimeout(gaugeTimeout.toNanoseconds(), TimeUnit.NANOSECONDS);
+    }
+    if (gaugeQuarantineFailures > 0) {
+      builder.withGaugeQuarantine(gaugeQuarantineFailures, gaugeQuarantinePeriods);
+    }
+    if (nativeCounts) {
+      builder.withNativeCounts();
+    }
+    if (cardinalityLimit > 0) {
+      builder.withCardinalityLimit(cardinalityLimit);
+    }
+    if (maxIntervalStretch > 1) {
+      builder.withAdaptiveInterval(maxIntervalStretch,
+          slowSend != null ? slowSend.toNanoseconds() : 0, TimeUnit.NANOSECONDS);
+    }
+    if (alignedTicks) {
+      builder.withAlignedTicks(alignedTicksJitter.toMilliseconds(), TimeUnit.MILLISECONDS);
+    }
+    for (Map.Entry<String, List<String>> rollup : rollups.entrySet()) {
+      builder.withRollup(Pattern.compile(rollup.getKey()),
+          rollup.getValue().toArray(new String[rollup.getValue().size()]));
+    }
+    for (Map.Entry<Expansion, Precision> precision : expansionPrecisions.entrySet()) {
+      builder.withPrecision(precision.getKey(), precision.getValue());
+    }
+    for (Map.Entry<String, Precision> precision : precisions.entrySet()) {
+      builder.withPrecision(Pattern.compile(precision.getKey()), precision.getValue());
+    }
+    if (selfMetrics) {
+      builder.withSelfMetrics(registry, false);
     }
+    return builder.build();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.validation.BaseValidator;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AsyncTransportFactoryTest {
+  private final ObjectMapper mapper = Jackson.newObjectMapper();
+
+  @Test
+  public void bindsAndBuildsAnAsyncTransport() throws Exception {
+    final AbstractTransportFactory factory = mapper.readValue(
+        "{\"type\": \"async\", \"queueSize\": 4, \"overflowPolicy\": \"BLOCK\","
+            + " \"transport\": {\"type\": \"http\", \"apiKey\": \"key\"}}",
+        AbstractTransportFactory.class);
+    assertThat(factory).isInstanceOf(AsyncTransportFactory.class);
+    assertThat(BaseValidator.newValidator().validate(factory)).isEmpty();
+
+    final MetricRegistry registry = new MetricRegistry();
+    final Transport transport = factory.build(registry);
+    try {
+      assertThat(transport).isInstanceOf(AsyncTransport.class);
+      assertThat(registry.getGauges())
+          .containsKey(MetricRegistry.name(AsyncTransport.class, "queue-depth"));
+    } finally {
+      transport.close();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.validation.BaseValidator;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BatchingTransportFactoryTest {
+  private final ObjectMapper mapper = Jackson.newObjectMapper();
+
+  @Test
+  public void bindsAndBuildsABatchingTransport() throws Exception {
+    final AbstractTransportFactory factory = mapper.readValue(
+        "{\"type\": \"batching\", \"batchSize\": 3,"
+            + " \"transport\": {\"type\": \"http\", \"apiKey\": \"key\"}}",
+        AbstractTransportFactory.class);
+    assertThat(factory).isInstanceOf(BatchingTransportFactory.class);
+    assertThat(BaseValidator.newValidator().validate(factory)).isEmpty();
+
+    final Transport transport = factory.build(null);
+    try {
+      assertThat(transport).isInstanceOf(BatchingTransport.class);
+      assertThat(((BatchingTransport) transport).getPendingReports()).isEqualTo(0);
+    } finally {
+      transport.close();
+    }
+  }
+}
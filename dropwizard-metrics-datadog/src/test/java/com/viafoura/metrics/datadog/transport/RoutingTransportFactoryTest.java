@@ -0,0 +1,33 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.validation.BaseValidator;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RoutingTransportFactoryTest {
+  private final ObjectMapper mapper = Jackson.newObjectMapper();
+
+  @Test
+  public void bindsAndBuildsARoutingTransport() throws Exception {
+    final AbstractTransportFactory factory = mapper.readValue(
+        "{\"type\": \"routing\", \"transport\": {\"type\": \"http\", \"apiKey\": \"key\"},"
+            + " \"routes\": [{\"pattern\": \"^latency\\\\.\","
+            + " \"transport\": {\"type\": \"http\", \"apiKey\": \"a\"}},"
+            + " {\"tag\": \"tenant:acme\","
+            + " \"transport\": {\"type\": \"http\", \"apiKey\": \"b\"}}]}",
+        AbstractTransportFactory.class);
+    assertThat(factory).isInstanceOf(RoutingTransportFactory.class);
+    assertThat(BaseValidator.newValidator().validate(factory)).isEmpty();
+
+    final Transport transport = factory.build(null);
+    try {
+      assertThat(transport).isInstanceOf(RoutingTransport.class);
+      assertThat(transport.prepare()).isInstanceOf(RoutingTransport.RoutingRequest.class);
+    } finally {
+      transport.close();
+    }
+  }
+}
@@ -1,14 +1,114 @@
 package io.dropwizard.metrics;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.viafoura.metrics.datadog.DatadogReporter;
+import com.viafoura.metrics.datadog.DatadogReporter.Expansion;
+import com.viafoura.metrics.datadog.Precision;
 import io.dropwizard.jackson.DiscoverableSubtypeResolver;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.BaseValidator;
 import org.fest.assertions.api.Assertions;
 import org.junit.Test;
 
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
 public class DatadogReporterFactoryTest {
+  private static final String TRANSPORT = "\"transport\": {\"type\": \"http\", \"apiKey\": \"key\"}";
+
+  private final ObjectMapper mapper = Jackson.newObjectMapper();
+
   @Test
   public void isDiscoverable() throws Exception {
     Assertions
         .assertThat(new DiscoverableSubtypeResolver().getDiscoveredSubtypes())
         .contains(DatadogReporterFactory.class);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void bindsAndBuildsAReporter() throws Exception {
+    final DatadogReporterFactory factory = factory("\"shards\": 2,"
+        + " \"timeBudget\": \"500 milliseconds\","
+        + " \"priorities\": {\"^slo\\\\.\": 10},"
+        + " \"gaugeTimeout\": \"100 milliseconds\","
+        + " \"gaugeQuarantineFailures\": 3,"
+        + " \"gaugeQuarantinePeriods\": 5,"
+        + " \"nativeCounts\": true,"
+        + " \"alignedTicks\": true,"
+        + " \"alignedTicksJitter\": \"2 seconds\","
+        + " \"maxIntervalStretch\": 4,"
+        + " \"slowSend\": \"3 seconds\","
+        + " \"cardinalityLimit\": 100,"
+        + " \"rollups\": {\"^http\\\\.\": [\"client\"]},"
+        + " \"expansionPrecisions\": {\"P99\": \"3 digits\"},"
+        + " \"precisions\": {\"^latency\\\\.\": \"2 decimals\"},"
+        + " \"selfMetrics\": true,"
+        + " \"dynamicTagsTtl\": \"1 minute\"");
+    assertThat(BaseValidator.newValidator().validate(factory)).isEmpty();
+
+    assertThat(factory.getShards()).isEqualTo(2);
+    assertThat(factory.getTimeBudget()).isEqualTo(Duration.milliseconds(500));
+    assertThat(factory.getPriorities()).containsKey("^slo\\.");
+    assertThat(factory.getPriorities().get("^slo\\.")).isEqualTo(10);
+    assertThat(factory.getGaugeTimeout()).isEqualTo(Duration.milliseconds(100));
+    assertThat(factory.getGaugeQuarantineFailures()).isEqualTo(3);
+    assertThat(factory.getGaugeQuarantinePeriods()).isEqualTo(5);
+    assertThat(factory.isNativeCounts()).isTrue();
+    assertThat(factory.isAlignedTicks()).isTrue();
+    assertThat(factory.getAlignedTicksJitter()).isEqualTo(Duration.seconds(2));
+    assertThat(factory.getMaxIntervalStretch()).isEqualTo(4);
+    assertThat(factory.getSlowSend()).isEqualTo(Duration.seconds(3));
+    assertThat(factory.getCardinalityLimit()).isEqualTo(100);
+    assertThat(factory.getRollups().get("^http\\.")).isEqualTo(Arrays.asList("client"));
+    assertThat(factory.getExpansionPrecisions().get(Expansion.P99))
+        .isEqualTo(Precision.significantDigits(3));
+    assertThat(factory.getPrecisions().get("^latency\\.")).isEqualTo(Precision.decimals(2));
+    assertThat(factory.isSelfMetrics()).isTrue();
+    assertThat(factory.getDynamicTagsTtl()).isEqualTo(Duration.minutes(1));
+
+    final MetricRegistry registry = new MetricRegistry();
+    final ScheduledReporter reporter = factory.build(registry);
+    try {
+      assertThat(reporter).isInstanceOf(DatadogReporter.class);
+      assertThat(registry.getGauges())
+          .containsKey(MetricRegistry.name(DatadogReporter.class, "folded-metrics"));
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  @Test
+  public void rejectsNegativeOrZeroValues() throws Exception {
+    final String[] invalid = {
+        "\"shards\": 0",
+        "\"timeBudget\": \"0 seconds\"",
+        "\"gaugeTimeout\": \"0 seconds\"",
+        "\"gaugeQuarantineFailures\": -1",
+        "\"gaugeQuarantinePeriods\": 0",
+        "\"maxIntervalStretch\": 0",
+        "\"slowSend\": \"0 seconds\"",
+        "\"cardinalityLimit\": -1",
+        "\"dynamicTagsTtl\": \"0 seconds\"",
+        "\"alignedTicksJitter\": null",
+        "\"priorities\": null",
+        "\"rollups\": null",
+        "\"precisions\": null",
+    };
+    for (String option : invalid) {
+      assertThat(BaseValidator.newValidator().validate(factory(option)))
+          .as(option)
+          .isNotEmpty();
+    }
+  }
+
+  private DatadogReporterFactory factory(String options) throws Exception {
+    final ReporterFactory factory = mapper.readValue(
+        "{\"type\": \"datadog\", " + TRANSPORT + ", " + options + "}", ReporterFactory.class);
+    assertThat(factory).isInstanceOf(DatadogReporterFactory.class);
+    return (DatadogReporterFactory) factory;
+  }
+}
@@ -0,0 +1,182 @@
+package com.viafoura.metrics.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DynamicTagsCallback} refreshing the tags of another callback on its own schedule, so
+ * that a slow callback, e.g. one looking up deployment metadata, does not stall reports.
+ * {@link #start()} fetches the tags once, then refreshes them in the background, and
+ * {@link #getTags()} returns the last refreshed tags without blocking, an empty list until the
+ * callback is started.
+ * <p/>
+ * A refresh that throws keeps the previous tags. The listener, if any, is called once per change
+ * of the tags.
+ */
+public class CachedDynamicTagsCallback implements DynamicTagsCallback, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CachedDynamicTagsCallback.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+  /**
+   * Notified of changes of the tags, on the refreshing thread.
+   */
+  public interface Listener {
+    void onTagsChanged(List<String> tags);
+  }
+
+  private final DynamicTagsCallback callback;
+  private final Listener listener;
+  private final long ttl;
+  private final boolean ownsExecutor;
+  private final AtomicLong failures = new AtomicLong();
+  private volatile List<String> tags = Collections.emptyList();
+  // Created by start when not given, so that a callback never started holds no thread
+  private ScheduledExecutorService executor;
+  private ScheduledFuture<?> refreshes;
+  private boolean closed;
+
+  private CachedDynamicTagsCallback(DynamicTagsCallback callback,
+                                    long ttl,
+                                    ScheduledExecutorService executor,
+                                    Listener listener) {
+    this.callback = callback;
+    this.listener = listener;
+    this.ttl = ttl;
+    this.ownsExecutor = executor == null;
+    this.executor = executor;
+  }
+
+  public static Builder forCallback(DynamicTagsCallback callback) {
+    return new Builder(callback);
+  }
+
+  /**
+   * Fetch the tags on the calling thread, then refresh them every TTL. Does nothing if the
+   * callback is already started or closed. {@link DatadogReporter} starts its callback when it
+   * starts.
+   */
+  public synchronized void start() {
+    if (refreshes != null || closed) {
+      return;
+    }
+    refresh();
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "datadog-tags-" + THREAD_ID.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    refreshes = executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        refresh();
+      }
+    }, ttl, ttl, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return the last refreshed tags
+   */
+  public List<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * @return the number of refreshes that threw, keeping the previous tags
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  void refresh() {
+    List<String> newTags;
+    try {
+      newTags = callback.getTags();
+    } catch (RuntimeException e) {
+      failures.incrementAndGet();
+      LOG.warn("Error refreshing dynamic tags, keeping the previous ones", e);
+      return;
+    }
+    if (newTags == null) {
+      newTags = Collections.emptyList();
+    }
+    if (!newTags.equals(tags)) {
+      tags = Collections.unmodifiableList(new ArrayList<String>(newTags));
+      if (listener != null) {
+        try {
+          listener.onTagsChanged(tags);
+        } catch (RuntimeException e) {
+          LOG.warn("Error notifying a change of dynamic tags", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop refreshing the tags, which keep their last value.
+   */
+  public synchronized void close() {
+    closed = true;
+    if (refreshes != null) {
+      refreshes.cancel(false);
+    }
+    if (ownsExecutor && executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  public static class Builder {
+    private final DynamicTagsCallback callback;
+    private long ttl = TimeUnit.MINUTES.toNanos(1);
+    private ScheduledExecutorService executor;
+    private Listener listener;
+
+    private Builder(DynamicTagsCallback callback) {
+      this.callback = callback;
+    }
+
+    /**
+     * Refresh the tags every given period, one minute by default.
+     */
+    public Builder withTtl(long ttl, TimeUnit unit) {
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("Dynamic tags TTL must be positive, got " + ttl);
+      }
+      this.ttl = unit.toNanos(ttl);
+      return this;
+    }
+
+    /**
+     * Refresh the tags on the given executor, which is not shut down on close, rather than on a
+     * daemon thread of their own.
+     */
+    public Builder withExecutor(ScheduledExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public Builder withListener(Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    public CachedDynamicTagsCallback build() {
+      return new CachedDynamicTagsCallback(callback, ttl, executor, listener);
+    }
+  }
+}
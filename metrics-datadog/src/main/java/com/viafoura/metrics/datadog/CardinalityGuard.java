@@ -0,0 +1,263 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caps the number of distinct values of each tag key of each metric name reported by
+ * {@link DatadogReporter DatadogReporter}, so that a tag with unbounded values, e.g.
+ * {@code requests[user:123]}, does not create a series per value.
+ * <p/>
+ * For each metric name and tag key, a Space-Saving sketch of up to twice the limit tracks the
+ * values with the most activity: the increase of the count of counting metrics, plus one per
+ * report. Each report admits at most the limit of values per tag key, among the heaviest ones
+ * of the sketch, and the tags of the other values are reported as {@code key:other}. Memory
+ * is bounded per metric name and tag key, whatever the number of values, and the sketches of a
+ * metric name are evicted when its last metric is removed from the registry.
+ * <p/>
+ * Folded series are merged into one {@code other} series per report by a
+ * {@link SeriesAggregator}. Folded gauges, whose values cannot be merged, are not reported, but
+ * are counted by {@link #getFoldedMetrics()} like other folded metrics.
+ */
+class CardinalityGuard {
+  static final String OTHER = "other";
+  // Tags are tracked by their index in a 32 bits mask
+  static final int MAX_TAGS = 32;
+
+  private final int limit;
+  // Sketches by metric name
+  private final Map<String, NameSketches> sketches = new HashMap<String, NameSketches>();
+  private long foldedMetrics;
+  private volatile long lastFoldedMetrics;
+
+  /**
+   * @param limit The number of distinct values reported per metric name and tag key
+   */
+  CardinalityGuard(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Observe a metric reported by the given report.
+   *
+   * @return a mask of the tags of the metric whose value is folded into {@code other}, by their
+   * index in the tags of the metric, 0 if none
+   */
+  synchronized int observe(MetricCache.Entry entry, long report) {
+    Sketch[] entrySketches = entry.getSketches();
+    final List<String> tags = entry.getName().getEncodedTags();
+    if (entrySketches == null) {
+      entrySketches = sketches(entry.getName());
+      entry.setSketches(entrySketches);
+    }
+    final Metric metric = entry.getMetric();
+    long weight = 1;
+    if (metric instanceof Counting) {
+      weight += Math.max(0, entry.observedCount(((Counting) metric).getCount()));
+    }
+    int mask = 0;
+    for (int i = 0; i < entrySketches.length; i++) {
+      if (entrySketches[i] != null && !entrySketches[i].offer(tags.get(i), weight, report)) {
+        mask |= 1 << i;
+      }
+    }
+    if (mask != 0) {
+      foldedMetrics++;
+    }
+    return mask;
+  }
+
+  /**
+   * Release the sketches of a metric removed from the registry, evicting the sketches of its
+   * metric name if no other metric of that name uses them.
+   */
+  synchronized void release(MetricCache.Entry entry) {
+    if (entry.getSketches() == null) {
+      return;
+    }
+    entry.setSketches(null);
+    final String metricName = entry.getName().getMetricName();
+    final NameSketches byName = sketches.get(metricName);
+    if (byName != null && --byName.entries <= 0) {
+      sketches.remove(metricName);
+    }
+  }
+
+  /**
+   * @return the number of metric names with sketches
+   */
+  synchronized int size() {
+    return sketches.size();
+  }
+
+  /**
+   * End a report.
+   */
+  synchronized void endReport() {
+    lastFoldedMetrics = foldedMetrics;
+    foldedMetrics = 0;
+  }
+
+  /**
+   * @return the number of metrics whose series were folded into {@code other} by the last
+   * report, including the folded gauges that were not reported
+   */
+  long getFoldedMetrics() {
+    return lastFoldedMetrics;
+  }
+
+  /**
+   * @return the given name with the tags of the fold mask folded into {@code other}, and the
+   * tags of the drop mask dropped, the masks being relative to the given base tags
+   */
+  static TaggedName fold(TaggedName name, List<String> baseTags, int foldMask, int dropMask) {
+    final TaggedName.TaggedNameBuilder builder = new TaggedName.TaggedNameBuilder()
+        .metricName(name.getMetricName());
+    for (String tag : name.getEncodedTags()) {
+      final int index = baseTags.indexOf(tag);
+      final int bit = (index >= 0 && index < MAX_TAGS) ? 1 << index : 0;
+      if ((dropMask & bit) != 0) {
+        continue;
+      }
+      if ((foldMask & bit) != 0) {
+        builder.addTag(tag.substring(0, tag.indexOf(':')), OTHER);
+      } else {
+        builder.addTag(tag);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the sketches of the tags of the given name, null for tags without a value
+   */
+  private Sketch[] sketches(TaggedName name) {
+    NameSketches byName = sketches.get(name.getMetricName());
+    if (byName == null) {
+      byName = new NameSketches();
+      sketches.put(name.getMetricName(), byName);
+    }
+    byName.entries++;
+    final Map<String, Sketch> byKey = byName.byKey;
+    final List<String> tags = name.getEncodedTags();
+    final Sketch[] tagSketches = new Sketch[Math.min(tags.size(), MAX_TAGS)];
+    for (int i = 0; i < tagSketches.length; i++) {
+      final int colon = tags.get(i).indexOf(':');
+      if (colon > 0) {
+        final String key = tags.get(i).substring(0, colon);
+        Sketch sketch = byKey.get(key);
+        if (sketch == null) {
+          sketch = new Sketch(limit);
+          byKey.put(key, sketch);
+        }
+        tagSketches[i] = sketch;
+      }
+    }
+    return tagSketches;
+  }
+
+  /**
+   * The sketches of a metric name by tag key, and the number of metrics using them.
+   */
+  private static final class NameSketches {
+    final Map<String, Sketch> byKey = new HashMap<String, Sketch>();
+    int entries;
+  }
+
+  /**
+   * A Space-Saving sketch of the values of a tag key, monitoring twice as many values as it
+   * admits per report.
+   */
+  static final class Sketch {
+    private final int limit;
+    private final Map<String, long[]> counts = new HashMap<String, long[]>();
+    // Values admitted by the current report
+    private final Set<String> admitted = new HashSet<String>();
+    private long report;
+    private long threshold;
+    private long error;
+
+    Sketch(int limit) {
+      this.limit = limit;
+    }
+
+    /**
+     * @return the number of values monitored
+     */
+    int size() {
+      return counts.size();
+    }
+
+    /**
+     * Add the given weight to the count of a tag.
+     *
+     * @return true if the tag is reported as is by the given report
+     */
+    boolean offer(String tag, long weight, long report) {
+      if (report != this.report) {
+        this.report = report;
+        this.threshold = heaviest(limit);
+        admitted.clear();
+      }
+      long[] count = counts.get(tag);
+      if (count == null) {
+        evictLightest();
+        // New values inherit the count of the heaviest value evicted, as their error
+        count = new long[] { error };
+        counts.put(tag, count);
+      }
+      count[0] += weight;
+
+      if (admitted.contains(tag)) {
+        return true;
+      }
+      // Until the sketch holds the limit of values the threshold is 0, and any value is admitted
+      if (admitted.size() < limit && count[0] >= threshold) {
+        admitted.add(tag);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return the count of the n-th heaviest value, 0 if there are fewer values
+     */
+    private long heaviest(int n) {
+      if (counts.size() < n) {
+        return 0;
+      }
+      final long[] sorted = new long[counts.size()];
+      int i = 0;
+      for (long[] count : counts.values()) {
+        sorted[i++] = count[0];
+      }
+      Arrays.sort(sorted);
+      return sorted[sorted.length - n];
+    }
+
+    /**
+     * Once the sketch is full, evict all values but the heaviest ones in one pass, so that the
+     * cost of evictions stays logarithmic per new value.
+     */
+    private void evictLightest() {
+      if (counts.size() < 2 * limit) {
+        return;
+      }
+      error = heaviest(limit + 1);
+      final Iterator<long[]> iterator = counts.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next()[0] <= error) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
@@ -6,12 +6,17 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.viafoura.metrics.datadog.model.DatadogCount;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import com.viafoura.metrics.datadog.transport.AsyncTransport;
+import com.viafoura.metrics.datadog.transport.BufferedRequest;
 import com.viafoura.metrics.datadog.transport.HttpTransport;
 import com.viafoura.metrics.datadog.transport.Transport;
 import com.viafoura.metrics.datadog.transport.UdpTransport;
@@ -19,16 +24,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 public class DatadogReporter extends ScheduledReporter {
 
   private static final Logger LOG = LoggerFactory.getLogger(DatadogReporter.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
 
   private static final Expansion[] STATS_EXPANSIONS = { Expansion.MAX, Expansion.MEAN,
       Expansion.MIN, Expansion.STD_DEV, Expansion.MEDIAN, Expansion.P75, Expansion.P95,
@@ -39,15 +66,67 @@ public class DatadogReporter extends ScheduledReporter {
   private final Transport transport;
   private final Clock clock;
   private final String host;
-  private final EnumSet<Expansion> expansions;
-  private final MetricNameFormatter metricNameFormatter;
+  private final Expansion[] statsExpansions;
+  private final Expansion[] rateExpansions;
+  private final boolean reportCount;
   private final List<String> tags;
-  private final String prefix;
   private final DynamicTagsCallback tagsCallback;
-  private Transport.Request request;
+  private final boolean ownsTagsCallback;
+  // True if the transport is the AsyncTransport of withAsyncSend, shut down on stop
+  private final boolean ownsTransport;
+  private final MetricRegistry registry;
+  private final MetricCache metricCache;
+  private final ForkJoinPool snapshotPool;
+  private final int heartbeat;
+  private final ScheduledExecutorService executor;
+  private final int shards;
+  private final Tier[] tiers;
+  private final Priority[] priorities;
+  // Distinct priorities, highest first, the index of a priority being its band
+  private final int[] bandPriorities;
+  private final long budget;
+  private final GaugeEvaluator gaugeEvaluator;
+  private final boolean nativeCounts;
+  private final CardinalityGuard cardinalityGuard;
+  private final List<Rollup> rollups;
+  // Precision of the values of each expansion, by ordinal, null to send them as they are
+  private final Precision[] expansionPrecisions;
+  private final List<Rounding> roundings;
+  private final SeriesAggregator aggregator = new SeriesAggregator();
+  private final MetricRegistry selfRegistry;
+  private final SelfMetrics selfMetrics;
+  private final boolean reportSelfMetrics;
+  private final Timer reportTimer;
+  private final Timer collectionTimer;
+  private final Timer sendTimer;
+  private final AtomicLong overruns = new AtomicLong();
+  private final AtomicLong deferrals = new AtomicLong();
+  private ScheduledFuture<?> shardsFuture;
+  // The maximum delay of aligned reports after period boundaries in milliseconds, or -1
+  private final long alignJitter;
+  // The period reports are aligned on in milliseconds, once started, 0 if not aligned
+  private volatile long alignPeriod;
+  // The period in milliseconds, once started
+  private volatile long period;
+  // Adaptive interval: while the transport is backpressured, only every stretch-th period is
+  // reported, the stretch doubling up to maxStretch, and halving once the transport recovers
+  private final int maxStretch;
+  private final long slowSend;
+  private volatile int stretch = 1;
+  private int skippedPeriods;
+  private boolean skippingCycle;
+  private long tick;
+  private int tickHeartbeat;
+  private long cycleTimestamp;
+  private List<String> cycleTags;
+  // The last dynamic tags, copied, and their merge with the static tags
+  private List<String> lastDynamicTags;
+  private List<String> lastMergedTags;
+  private boolean primitiveRequest;
 
   private DatadogReporter(MetricRegistry metricRegistry,
                           Transport transport,
+                          boolean ownsTransport,
                           MetricFilter filter,
                           Clock clock,
                           String host,
@@ -57,16 +136,240 @@ public class DatadogReporter extends ScheduledReporter {
                           MetricNameFormatter metricNameFormatter,
                           List<String> tags,
                           String prefix,
-                          DynamicTagsCallback tagsCallback) {
-    super(metricRegistry, "datadog-reporter", filter, rateUnit, durationUnit);
+                          DynamicTagsCallback tagsCallback,
+                          boolean ownsTagsCallback,
+                          ForkJoinPool snapshotPool,
+                          int heartbeat,
+                          int shards,
+                          List<Tier> tiers,
+                          List<Priority> priorities,
+                          long budget,
+                          GaugeEvaluator gaugeEvaluator,
+                          boolean nativeCounts,
+                          int cardinalityLimit,
+                          List<Rollup> rollups,
+                          Map<Expansion, Precision> expansionPrecisions,
+                          List<Rounding> roundings,
+                          long alignJitter,
+                          int maxStretch,
+                          long slowSend,
+                          MetricRegistry selfRegistry,
+                          SelfMetrics selfMetrics,
+                          boolean reportSelfMetrics,
+                          ScheduledExecutorService executor,
+                          boolean shutdownExecutorOnStop) {
+    super(metricRegistry, "datadog-reporter", filter, rateUnit, durationUnit, executor,
+        shutdownExecutorOnStop);
     this.clock = clock;
     this.host = host;
-    this.expansions = expansions;
-    this.metricNameFormatter = metricNameFormatter;
+    this.statsExpansions = plan(STATS_EXPANSIONS, expansions);
+    this.rateExpansions = plan(RATE_EXPANSIONS, expansions);
+    this.reportCount = expansions.contains(Expansion.COUNT);
     this.tags = (tags == null) ? new ArrayList<String>() : tags;
     this.transport = transport;
-    this.prefix = prefix;
     this.tagsCallback = tagsCallback;
+    this.ownsTagsCallback = ownsTagsCallback;
+    this.ownsTransport = ownsTransport;
+    this.registry = metricRegistry;
+    this.snapshotPool = snapshotPool;
+    this.heartbeat = heartbeat;
+    this.shards = shards;
+    this.tiers = tiers.toArray(new Tier[tiers.size()]);
+    this.priorities = priorities.toArray(new Priority[priorities.size()]);
+    this.bandPriorities = bandPriorities(priorities);
+    this.budget = budget;
+    this.gaugeEvaluator = gaugeEvaluator;
+    this.nativeCounts = nativeCounts;
+    this.cardinalityGuard = (cardinalityLimit > 0) ? new CardinalityGuard(cardinalityLimit) : null;
+    this.metricCache = new MetricCache(metricNameFormatter, prefix, filter, cardinalityGuard,
+        new MetricCache.Tiering() {
+          public int periods(String name, Metric metric) {
+            return DatadogReporter.this.periods(name, metric);
+          }
+        });
+    this.rollups = rollups;
+    this.expansionPrecisions = new Precision[Expansion.values().length];
+    for (Map.Entry<Expansion, Precision> precision : expansionPrecisions.entrySet()) {
+      this.expansionPrecisions[precision.getKey().ordinal()] = precision.getValue();
+    }
+    this.roundings = roundings;
+    this.alignJitter = alignJitter;
+    this.maxStretch = maxStretch;
+    this.slowSend = slowSend;
+    this.selfRegistry = selfRegistry;
+    this.reportSelfMetrics = reportSelfMetrics && selfRegistry != null && selfRegistry != metricRegistry;
+    this.executor = executor;
+    this.selfMetrics = selfMetrics;
+    if (selfMetrics != null) {
+      this.reportTimer = selfMetrics.timer("report");
+      this.collectionTimer = selfMetrics.timer("collection");
+      this.sendTimer = selfMetrics.timer("send");
+      registerSelfGauges(selfMetrics);
+    } else {
+      this.reportTimer = new Timer();
+      this.collectionTimer = new Timer();
+      this.sendTimer = new Timer();
+    }
+    metricRegistry.addListener(metricCache);
+    if (this.reportSelfMetrics) {
+      selfRegistry.addListener(metricCache);
+    }
+  }
+
+  /**
+   * Starts the reporter. With more than one shard, shards are reported one after the other,
+   * evenly spread over the period, so that each metric is still reported once per period.
+   * With aligned ticks, the initial delay is replaced by the delay to the next period boundary.
+   *
+   * @see Builder#withAlignedTicks(long, TimeUnit)
+   */
+  @Override
+  public synchronized void start(long initialDelay, long period, TimeUnit unit) {
+    startTagsCallback();
+    this.period = unit.toMillis(period);
+    // Scheduled in nanoseconds, so that neither the aligned delay nor its jitter is truncated
+    // to the unit of the period
+    long initialDelayNanos = unit.toNanos(initialDelay);
+    final long periodNanos = unit.toNanos(period);
+    if (alignJitter >= 0) {
+      final long periodMillis = unit.toMillis(period);
+      if (periodMillis <= alignJitter) {
+        throw new IllegalArgumentException("Aligned ticks jitter must be less than the period");
+      }
+      final long jitter = (alignJitter == 0)
+          ? 0 : ThreadLocalRandom.current().nextLong(alignJitter + 1);
+      initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+          alignedDelay(clock.getTime(), periodMillis, jitter));
+      alignPeriod = periodMillis;
+    }
+    if (shards == 1) {
+      super.start(initialDelayNanos, periodNanos, TimeUnit.NANOSECONDS);
+      return;
+    }
+    if (shardsFuture != null) {
+      throw new IllegalArgumentException("Reporter already started");
+    }
+    shardsFuture = executor.scheduleAtFixedRate(new Runnable() {
+      private int shard = 0;
+
+      public void run() {
+        try {
+          reportShard(shard);
+        } catch (Throwable e) {
+          LOG.error("Exception thrown from {}#report. Exception was suppressed.",
+              DatadogReporter.this.getClass().getSimpleName(), e);
+        }
+        shard = (shard + 1) % shards;
+      }
+    }, initialDelayNanos, periodNanos / shards, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return the delay from the given time to the next multiple of the period, plus the jitter,
+   * all in milliseconds
+   */
+  static long alignedDelay(long now, long period, long jitter) {
+    return period - now % period + jitter;
+  }
+
+  private void registerSelfGauges(SelfMetrics selfMetrics) {
+    selfMetrics.register("overruns", new Gauge<Long>() {
+      public Long getValue() {
+        return overruns.get();
+      }
+    });
+    selfMetrics.register("deferrals", new Gauge<Long>() {
+      public Long getValue() {
+        return deferrals.get();
+      }
+    });
+    selfMetrics.register("interval", new Gauge<Long>() {
+      public Long getValue() {
+        return getEffectiveInterval();
+      }
+    });
+    selfMetrics.register("metrics", new Gauge<Integer>() {
+      public Integer getValue() {
+        return metricCache.size();
+      }
+    });
+    if (cardinalityGuard != null) {
+      selfMetrics.register("folded-metrics", new Gauge<Long>() {
+        public Long getValue() {
+          return cardinalityGuard.getFoldedMetrics();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the period between reports in milliseconds, stretched while the transport is
+   * backpressured, or 0 if the reporter is not started
+   * @see Builder#withAdaptiveInterval(int, long, TimeUnit)
+   */
+  public long getEffectiveInterval() {
+    return period * stretch;
+  }
+
+  /**
+   * @return the number of reports that did not finish within the time budget
+   */
+  public long getOverruns() {
+    return overruns.get();
+  }
+
+  /**
+   * @return the number of metrics whose tag values were folded into {@code other} by the last
+   * report, see {@link Builder#withCardinalityLimit(int)}
+   */
+  public long getFoldedMetrics() {
+    return (cardinalityGuard == null) ? 0 : cardinalityGuard.getFoldedMetrics();
+  }
+
+  /**
+   * @return the number of times a metric was deferred to the next report for lack of time
+   */
+  public long getDeferrals() {
+    return deferrals.get();
+  }
+
+  /**
+   * Start refreshing cached dynamic tags, fetching them before the first report.
+   */
+  void startTagsCallback() {
+    if (tagsCallback instanceof CachedDynamicTagsCallback) {
+      ((CachedDynamicTagsCallback) tagsCallback).start();
+    }
+  }
+
+  @Override
+  public void stop() {
+    try {
+      synchronized (this) {
+        // Shard reports are scheduled apart from ScheduledReporter, whose executor may be shared
+        if (shardsFuture != null) {
+          shardsFuture.cancel(false);
+        }
+      }
+      super.stop();
+    } finally {
+      registry.removeListener(metricCache);
+      if (reportSelfMetrics) {
+        selfRegistry.removeListener(metricCache);
+      }
+      gaugeEvaluator.stop();
+      if (selfMetrics != null) {
+        // Frees the names of the metrics for another reporter, or this one once rebuilt
+        selfMetrics.remove();
+      }
+      if (ownsTagsCallback) {
+        ((CachedDynamicTagsCallback) tagsCallback).close();
+      }
+      if (ownsTransport) {
+        // Sends the queued requests, the transport given to the builder staying open
+        ((AsyncTransport) transport).shutdown();
+      }
+    }
   }
 
   @Override
@@ -75,123 +378,603 @@ public class DatadogReporter extends ScheduledReporter {
                      SortedMap<String, Histogram> histograms,
                      SortedMap<String, Meter> meters,
                      SortedMap<String, Timer> timers) {
-    final long timestamp = clock.getTime() / 1000;
+    final Object indexing = FlightRecorderEvents.beginPhase();
+    startCycle();
+    final List<MetricCache.Entry> gaugeEntries = entries(gauges);
+    final List<MetricCache.Entry> counterEntries = entries(counters);
+    final List<MetricCache.Entry> histogramEntries = entries(histograms);
+    final List<MetricCache.Entry> meterEntries = entries(meters);
+    final List<MetricCache.Entry> timerEntries = entries(timers);
+    FlightRecorderEvents.endPhase(indexing, "index", -1);
+    report(gaugeEntries, counterEntries, histogramEntries, meterEntries, timerEntries, -1);
+  }
+
+  /**
+   * Report the metrics of the registry that are due in this reporting period.
+   */
+  @Override
+  public synchronized void report() {
+    if (skipsPeriod()) {
+      return;
+    }
+    final Object indexing = FlightRecorderEvents.beginPhase();
+    startCycle();
+    FlightRecorderEvents.endPhase(indexing, "index", -1);
+    reportIndexed(-1);
+  }
+
+  /**
+   * Report the next shard of the registry. Shards are reported in turn, and all shards of a
+   * reporting period share the timestamp and tags computed for the first one.
+   */
+  synchronized void reportShard(int shard) {
+    if (shard == 0) {
+      skippingCycle = skipsPeriod();
+    }
+    if (skippingCycle) {
+      return;
+    }
+    if (shard == 0) {
+      final Object indexing = FlightRecorderEvents.beginPhase();
+      startCycle();
+      FlightRecorderEvents.endPhase(indexing, "index", shard);
+    }
+    reportIndexed(shard);
+  }
+
+  /**
+   * Add the series of all the metrics of the registry that are due in this reporting period to
+   * a request shared with other reporters, which the caller sends.
+   *
+   * @see MultiRegistryReporter
+   */
+  synchronized void reportTo(Transport.Request request) throws IOException {
+    final Object indexing = FlightRecorderEvents.beginPhase();
+    startCycle();
+    FlightRecorderEvents.endPhase(indexing, "index", -1);
+    final long start = clock.getTick();
+    try {
+      collect(request, metricCache.getGauges(tick), metricCache.getCounters(tick),
+          metricCache.getHistograms(tick), metricCache.getMeters(tick),
+          metricCache.getTimers(tick), -1, start + budget);
+    } finally {
+      collectionTimer.update(clock.getTick() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Report the metrics indexed by the cache, which already match the filter, so that the
+   * registry is neither copied nor filtered again. Only the interval tiers due in the current
+   * period are visited.
+   *
+   * @param shard The shard to report, or -1 for all of them
+   */
+  private void reportIndexed(int shard) {
+    report(metricCache.getGauges(tick),
+        metricCache.getCounters(tick),
+        metricCache.getHistograms(tick),
+        metricCache.getMeters(tick),
+        metricCache.getTimers(tick),
+        shard);
+  }
+
+  private List<MetricCache.Entry> entries(SortedMap<String, ? extends Metric> metrics) {
+    final List<MetricCache.Entry> entries = new ArrayList<MetricCache.Entry>(metrics.size());
+    for (Map.Entry<String, ? extends Metric> entry : metrics.entrySet()) {
+      entries.add(metricCache.get(entry.getKey(), entry.getValue()));
+    }
+    return entries;
+  }
+
+  /**
+   * Decide whether a metric is reported by the current report, in the given priority band.
+   * Once the time budget of the report is spent, metrics outside the first band are deferred to
+   * the next report, and reported without snapshot statistics if they were deferred already.
+   *
+   * @param shard The shard to report, or -1 for all of them
+   */
+  private boolean schedule(MetricCache.Entry entry, int shard, int band, long deadline) {
+    if (!entry.isScheduled()) {
+      entry.schedule(periods(entry.getRegistryName(), entry.getMetric()), band(entry));
+      entry.setDropMask(dropMask(entry));
+      entry.setPrecision(precision(entry));
+    }
+    if (entry.getBand() != band || !isDue(entry, shard)) {
+      return false;
+    }
+    if (band == 0 || !isOverBudget(deadline)) {
+      entry.setDeferred(false);
+      entry.setReduced(false);
+      return admit(entry);
+    }
+    if (entry.isDeferred()) {
+      entry.setDeferred(false);
+      entry.setReduced(true);
+      return admit(entry);
+    }
+    entry.setDeferred(true);
+    deferrals.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Apply the cardinality guard to a metric about to be reported.
+   *
+   * @return false if tags of the metric are folded into {@code other} and it is a gauge, whose
+   * value cannot be merged with the other folded series
+   */
+  private boolean admit(MetricCache.Entry entry) {
+    if (cardinalityGuard == null) {
+      return true;
+    }
+    final int foldMask = cardinalityGuard.observe(entry, tick);
+    entry.setFoldMask(foldMask);
+    return foldMask == 0 || !(entry.getMetric() instanceof Gauge);
+  }
+
+  /**
+   * @return the precision of the first precision rule the metric matches, null if none
+   */
+  private Precision precision(MetricCache.Entry entry) {
+    for (Rounding rounding : roundings) {
+      if (rounding.filter.matches(entry.getRegistryName(), entry.getMetric())) {
+        return rounding.precision;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the value rounded to the precision of the metric, or else of the expansion
+   */
+  private double round(MetricCache.Entry metric, Expansion expansion, double value) {
+    Precision precision = metric.getPrecision();
+    if (precision == null && expansion != null) {
+      precision = expansionPrecisions[expansion.ordinal()];
+    }
+    return (precision == null) ? value : precision.round(value);
+  }
+
+  /**
+   * @return the mask of the tags of the metric dropped by the first rollup rule it matches, 0
+   * if none. Gauges are never rolled up.
+   */
+  private int dropMask(MetricCache.Entry entry) {
+    if (entry.getMetric() instanceof Gauge) {
+      return 0;
+    }
+    for (Rollup rollup : rollups) {
+      if (rollup.filter.matches(entry.getRegistryName(), entry.getMetric())) {
+        final List<String> tags = entry.getName().getEncodedTags();
+        int mask = 0;
+        for (int i = 0; i < Math.min(tags.size(), CardinalityGuard.MAX_TAGS); i++) {
+          final int colon = tags.get(i).indexOf(':');
+          if (colon > 0 && rollup.tagKeys.contains(tags.get(i).substring(0, colon))) {
+            mask |= 1 << i;
+          }
+        }
+        return mask;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Merge a series of a metric whose tags are rolled up or folded into the series of its
+   * resulting name. Series of expansions whose values cannot be merged, such as percentiles,
+   * are dropped. Series of snapshot tasks are merged once the task is replayed, so that they
+   * are merged in the same order as by a sequential report.
+   */
+  private void aggregate(Transport.Request request, MetricCache.Entry metric, Expansion expansion,
+                         double value, boolean integral, boolean count) {
+    if (request instanceof SnapshotBuffer) {
+      ((SnapshotBuffer) request).aggregate(metric, expansion, value, integral, count);
+      return;
+    }
+    SeriesAggregator.Merge merge = SeriesAggregator.Merge.SUM;
+    if (expansion != null) {
+      switch (expansion) {
+        case COUNT:
+        case RATE_MEAN:
+        case RATE_1_MINUTE:
+        case RATE_5_MINUTE:
+        case RATE_15_MINUTE:
+          break;
+        case MAX:
+          merge = SeriesAggregator.Merge.MAX;
+          break;
+        case MIN:
+          merge = SeriesAggregator.Merge.MIN;
+          break;
+        default:
+          return;
+      }
+    }
+    aggregator.add(metric.getFoldedName(expansion), value, integral, count, merge);
+  }
+
+  /**
+   * @return true if the metric is in the given shard, and was deferred by the last report or
+   * its interval tier makes it due in the current period
+   */
+  private boolean isDue(MetricCache.Entry entry, int shard) {
+    if (shard >= 0 && (entry.getRegistryName().hashCode() & Integer.MAX_VALUE) % shards != shard) {
+      return false;
+    }
+    return entry.isDeferred() || (tick - 1) % entry.getPeriods() == 0;
+  }
+
+  private boolean isOverBudget(long deadline) {
+    return budget > 0 && clock.getTick() - deadline > 0;
+  }
+
+  /**
+   * @return the periods of the first interval tier the metric matches, 1 if none
+   */
+  private int periods(String name, Metric metric) {
+    for (Tier tier : tiers) {
+      if (tier.filter.matches(name, metric)) {
+        return tier.periods;
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * @return the band of the priority of the first priority rule the metric matches, 0 if none
+   */
+  private int band(MetricCache.Entry entry) {
+    int priority = 0;
+    for (Priority rule : priorities) {
+      if (rule.filter.matches(entry.getRegistryName(), entry.getMetric())) {
+        priority = rule.priority;
+        break;
+      }
+    }
+    int band = 0;
+    while (bandPriorities[band] != priority) {
+      band++;
+    }
+    return band;
+  }
+
+  /**
+   * @return the given entries that are reported in the given band of the current report
+   */
+  private List<MetricCache.Entry> schedule(Collection<MetricCache.Entry> entries, int shard,
+                                           int band, long deadline) {
+    final List<MetricCache.Entry> scheduled = new ArrayList<MetricCache.Entry>(entries.size());
+    for (MetricCache.Entry entry : entries) {
+      if (schedule(entry, shard, band, deadline)) {
+        scheduled.add(entry);
+      }
+    }
+    return scheduled;
+  }
+
+  /**
+   * Compute the state shared by everything reported within one reporting period.
+   */
+  private void startCycle() {
+    final long now = clock.getTime();
+    final long period = alignPeriod;
+    // Aligned reports are stamped with the boundary they were due at, whatever their jitter
+    cycleTimestamp = ((period > 0) ? now - now % period : now) / 1000;
 
     List<String> newTags = tags;
     if (tagsCallback != null) {
       List<String> dynamicTags = tagsCallback.getTags();
       if (dynamicTags != null && ! dynamicTags.isEmpty()) {
-        newTags = TagUtils.mergeTags(tags, dynamicTags);
+        newTags = mergeTags(dynamicTags);
       }
     }
 
+    tick++;
+    if (heartbeat > 0) {
+      // Series are identified by their tags too, so resend everything when the tags change
+      tickHeartbeat = newTags.equals(cycleTags) ? heartbeat : 1;
+    }
+    cycleTags = newTags;
+  }
+
+  /**
+   * Merge the static tags with the given dynamic tags, returning the previous merge while the
+   * dynamic tags do not change, so that the tag sets built for it keep being reused.
+   */
+  private List<String> mergeTags(List<String> dynamicTags) {
+    if (!dynamicTags.equals(lastDynamicTags)) {
+      lastMergedTags = TagUtils.mergeTags(tags, dynamicTags);
+      lastDynamicTags = new ArrayList<String>(dynamicTags);
+    }
+    return lastMergedTags;
+  }
+
+  private void report(Collection<MetricCache.Entry> gauges,
+                      Collection<MetricCache.Entry> counters,
+                      Collection<MetricCache.Entry> histograms,
+                      Collection<MetricCache.Entry> meters,
+                      Collection<MetricCache.Entry> timers,
+                      int shard) {
+    final long start = clock.getTick();
+    final long deadline = start + budget;
+    boolean backpressure = false;
     try {
-      request = transport.prepare();
+      final Transport.Request request = transport.prepare();
+      collect(request, gauges, counters, histograms, meters, timers, shard, deadline);
 
-      for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-        reportGauge(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+      final long collected = clock.getTick();
+      collectionTimer.update(collected - start, TimeUnit.NANOSECONDS);
+      final Object sending = FlightRecorderEvents.beginPhase();
+      long sent;
+      try {
+        request.send();
+      } catch (Exception e) {
+        backpressure = true;
+        throw e;
+      } finally {
+        // Failed sends are timed and recorded too
+        FlightRecorderEvents.endPhase(sending, "send", shard);
+        sent = clock.getTick() - collected;
+        sendTimer.update(sent, TimeUnit.NANOSECONDS);
       }
+      backpressure = slowSend > 0 && sent > slowSend;
+    } catch (Throwable e) {
+      LOG.error("Error reporting metrics to Datadog", e);
+    }
+    if (maxStretch > 1) {
+      adaptInterval(backpressure || transport.isBackpressured());
+    }
+    final long end = clock.getTick();
+    reportTimer.update(end - start, TimeUnit.NANOSECONDS);
+    if (budget > 0 && end - deadline > 0) {
+      overruns.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return true if the current period is skipped because the interval is stretched
+   */
+  private boolean skipsPeriod() {
+    if (++skippedPeriods < stretch) {
+      return true;
+    }
+    skippedPeriods = 0;
+    return false;
+  }
+
+  /**
+   * Double the interval between reports when the transport is backpressured, and halve it
+   * back once it is not. Skipped periods are not reported at all, so each report keeps a
+   * coherent timestamp, and counts cover the whole stretched interval.
+   */
+  private void adaptInterval(boolean backpressure) {
+    if (backpressure) {
+      stretch = Math.min(2 * stretch, maxStretch);
+    } else if (stretch > 1) {
+      stretch = stretch / 2;
+    }
+  }
+
+  /**
+   * Add the series of a report to the given request, without sending it.
+   */
+  private void collect(Transport.Request request,
+                       Collection<MetricCache.Entry> gauges,
+                       Collection<MetricCache.Entry> counters,
+                       Collection<MetricCache.Entry> histograms,
+                       Collection<MetricCache.Entry> meters,
+                       Collection<MetricCache.Entry> timers,
+                       int shard,
+                       long deadline) throws IOException {
+    // Decided once per report, so that buffered series match the request they are replayed in
+    primitiveRequest = request instanceof Transport.PrimitiveRequest;
+
+    final Object serializing = FlightRecorderEvents.beginPhase();
+    for (int band = 0; band < bandPriorities.length; band++) {
+      reportBand(request, gauges, counters, histograms, meters, timers, shard, band, deadline);
+    }
+    if (cardinalityGuard != null) {
+      cardinalityGuard.endReport();
+    }
+    reportAggregated(request, aggregator.drain());
+    FlightRecorderEvents.endPhase(serializing, "serialize", shard);
+  }
 
-      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-        reportCounter(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+  private void reportBand(Transport.Request request,
+                          Collection<MetricCache.Entry> gauges,
+                          Collection<MetricCache.Entry> counters,
+                          Collection<MetricCache.Entry> histograms,
+                          Collection<MetricCache.Entry> meters,
+                          Collection<MetricCache.Entry> timers,
+                          int shard,
+                          int band,
+                          long deadline) throws IOException {
+    final long timestamp = cycleTimestamp;
+    final List<String> newTags = cycleTags;
+
+    // Snapshots are the expensive part of a report, so take them up front when a pool is
+    // available. Results are buffered per chunk and replayed in reporting order below.
+    List<SnapshotTask> snapshots = null;
+    if (snapshotPool != null && histograms.size() + timers.size() > 1) {
+      final Object snapshotting = FlightRecorderEvents.beginPhase();
+      snapshots = snapshot(histograms, timers, shard, band, deadline, timestamp, newTags);
+      FlightRecorderEvents.endPhase(snapshotting, "snapshot", shard);
+    }
+
+    if (gaugeEvaluator.isConcurrent()) {
+      // Primitive gauges are read inline, without boxing, the others evaluated concurrently
+      final List<MetricCache.Entry> scheduled = schedule(gauges, shard, band, deadline);
+      final List<MetricCache.Entry> evaluated = new ArrayList<MetricCache.Entry>(scheduled.size());
+      for (MetricCache.Entry entry : scheduled) {
+        if (!isPrimitiveGauge(entry.getMetric())) {
+          evaluated.add(entry);
+        }
+      }
+      final Number[] values = gaugeEvaluator.evaluateAll(evaluated, tick, newTags);
+      int evaluation = 0;
+      for (MetricCache.Entry entry : scheduled) {
+        if (isPrimitiveGauge(entry.getMetric())) {
+          reportPrimitiveGauge(request, entry, timestamp, newTags);
+        } else {
+          reportGauge(request, entry, values[evaluation++], timestamp, newTags);
+        }
       }
+    } else {
+      for (MetricCache.Entry entry : gauges) {
+        if (schedule(entry, shard, band, deadline)) {
+          final Metric gauge = entry.getMetric();
+          if (isPrimitiveGauge(gauge)) {
+            reportPrimitiveGauge(request, entry, timestamp, newTags);
+          } else {
+            reportGauge(request, entry, gaugeEvaluator.evaluate(entry, tick, newTags), timestamp, newTags);
+          }
+        }
+      }
+    }
 
-      for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-        reportHistogram(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+    for (MetricCache.Entry entry : counters) {
+      if (schedule(entry, shard, band, deadline)) {
+        reportCounter(request, entry, (Counter) entry.getMetric(), timestamp, newTags);
       }
+    }
 
-      for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-        reportMetered(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+    if (snapshots != null) {
+      for (SnapshotTask task : snapshots) {
+        task.replayHistograms(request);
+      }
+    } else {
+      for (MetricCache.Entry entry : histograms) {
+        if (schedule(entry, shard, band, deadline)) {
+          reportHistogram(request, entry, (Histogram) entry.getMetric(), timestamp, newTags);
+        }
       }
+    }
 
-      for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-        reportTimer(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+    for (MetricCache.Entry entry : meters) {
+      if (schedule(entry, shard, band, deadline)) {
+        reportMetered(request, entry, (Meter) entry.getMetric(), timestamp, newTags);
       }
+    }
 
-      request.send();
-    } catch (Throwable e) {
-      LOG.error("Error reporting metrics to Datadog", e);
+    if (snapshots != null) {
+      for (SnapshotTask task : snapshots) {
+        task.replayTimers(request);
+      }
+    } else {
+      for (MetricCache.Entry entry : timers) {
+        if (schedule(entry, shard, band, deadline)) {
+          reportTimer(request, entry, (Timer) entry.getMetric(), timestamp, newTags);
+        }
+      }
     }
   }
 
-  private void reportTimer(String name, Timer timer, long timestamp, List<String> tags)
-      throws IOException {
-    final Snapshot snapshot = timer.getSnapshot();
+  /**
+   * Take the snapshots of the histograms and timers of a band on the snapshot pool. Under a time
+   * budget, bands below the first one are forked in chunks, each scheduled once the previous one
+   * is done, so that the time spent on snapshots counts against the budget and the remaining
+   * metrics are deferred once it is spent.
+   *
+   * @return the tasks holding the buffered series, in reporting order
+   */
+  private List<SnapshotTask> snapshot(Collection<MetricCache.Entry> histograms,
+                                      Collection<MetricCache.Entry> timers,
+                                      int shard,
+                                      int band,
+                                      long deadline,
+                                      long timestamp,
+                                      List<String> tags) {
+    if (band == 0 || budget == 0) {
+      final SnapshotTask task = new SnapshotTask(schedule(histograms, shard, band, deadline),
+          schedule(timers, shard, band, deadline), timestamp, tags, primitiveRequest);
+      snapshotPool.invoke(task);
+      return Collections.singletonList(task);
+    }
+    final int chunk = snapshotPool.getParallelism() * 16;
+    final List<SnapshotTask> tasks = new ArrayList<SnapshotTask>();
+    final Iterator<MetricCache.Entry> pendingHistograms = histograms.iterator();
+    final Iterator<MetricCache.Entry> pendingTimers = timers.iterator();
+    while (pendingHistograms.hasNext() || pendingTimers.hasNext()) {
+      final List<MetricCache.Entry> scheduledHistograms = new ArrayList<MetricCache.Entry>();
+      final List<MetricCache.Entry> scheduledTimers = new ArrayList<MetricCache.Entry>();
+      int visited = 0;
+      for (; visited < chunk && pendingHistograms.hasNext(); visited++) {
+        final MetricCache.Entry entry = pendingHistograms.next();
+        if (schedule(entry, shard, band, deadline)) {
+          scheduledHistograms.add(entry);
+        }
+      }
+      for (; visited < chunk && pendingTimers.hasNext(); visited++) {
+        final MetricCache.Entry entry = pendingTimers.next();
+        if (schedule(entry, shard, band, deadline)) {
+          scheduledTimers.add(entry);
+        }
+      }
+      if (!scheduledHistograms.isEmpty() || !scheduledTimers.isEmpty()) {
+        final SnapshotTask task = new SnapshotTask(scheduledHistograms, scheduledTimers,
+            timestamp, tags, primitiveRequest);
+        snapshotPool.invoke(task);
+        tasks.add(task);
+      }
+    }
+    return tasks;
+  }
 
-    double[] values = { snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(),
-        snapshot.getMedian(), snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-        snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+  private void reportTimer(Transport.Request request, MetricCache.Entry metric, Timer timer, long timestamp, List<String> tags)
+      throws IOException {
+    if (statsExpansions.length > 0 && !metric.isReduced() && hasNewSamples(metric, timer.getCount())) {
+      final Snapshot snapshot = timer.getSnapshot();
 
-    for (int i = 0; i < STATS_EXPANSIONS.length; i++) {
-      if (expansions.contains(STATS_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-            toNumber(convertDuration(values[i])),
-            timestamp,
-            host,
-            tags));
+      for (Expansion expansion : statsExpansions) {
+        addGauge(request, metric, expansion, convertDuration(statistic(snapshot, expansion)),
+            timestamp, tags);
       }
     }
 
-    reportMetered(name, timer, timestamp, tags);
+    reportMetered(request, metric, timer, timestamp, tags);
   }
 
-  private void reportMetered(String name, Metered meter, long timestamp, List<String> tags)
+  private void reportMetered(Transport.Request request, MetricCache.Entry metric, Metered meter, long timestamp, List<String> tags)
       throws IOException {
-    if (expansions.contains(Expansion.COUNT)) {
-      request.addGauge(new DatadogGauge(
-          appendExpansionSuffix(name, Expansion.COUNT),
-          meter.getCount(),
-          timestamp,
-          host,
-          tags));
+    if (nativeCounts) {
+      // The increase of the count replaces the count and the rates, which Datadog can compute
+      addCount(request, metric, Expansion.COUNT, metric.delta(meter.getCount()), timestamp, tags);
+      return;
     }
 
-    double[] values = { meter.getOneMinuteRate(), meter.getFiveMinuteRate(),
-        meter.getFifteenMinuteRate(), meter.getMeanRate() };
+    if (reportCount) {
+      addGauge(request, metric, Expansion.COUNT, meter.getCount(), timestamp, tags);
+    }
 
-    for (int i = 0; i < RATE_EXPANSIONS.length; i++) {
-      if (expansions.contains(RATE_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, RATE_EXPANSIONS[i]),
-            toNumber(convertRate(values[i])),
-            timestamp,
-            host,
-            tags));
-      }
+    for (Expansion expansion : rateExpansions) {
+      addGauge(request, metric, expansion, convertRate(rate(meter, expansion)), timestamp, tags);
     }
   }
 
-  private void reportHistogram(String name, Histogram histogram, long timestamp, List<String> tags)
+  private void reportHistogram(Transport.Request request, MetricCache.Entry metric, Histogram histogram, long timestamp, List<String> tags)
       throws IOException {
-    final Snapshot snapshot = histogram.getSnapshot();
-
-    if (expansions.contains(Expansion.COUNT)) {
-      request.addGauge(new DatadogGauge(
-          appendExpansionSuffix(name, Expansion.COUNT),
-          histogram.getCount(),
-          timestamp,
-          host,
-          tags));
+    final long count = histogram.getCount();
+    if (reportCount) {
+      addGauge(request, metric, Expansion.COUNT, count, timestamp, tags);
     }
 
-    Number[] values = { snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(),
-        snapshot.getMedian(), snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-        snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+    if (statsExpansions.length > 0 && !metric.isReduced() && hasNewSamples(metric, count)) {
+      final Snapshot snapshot = histogram.getSnapshot();
 
-    for (int i = 0; i < STATS_EXPANSIONS.length; i++) {
-      if (expansions.contains(STATS_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-            toNumber(values[i]),
-            timestamp,
-            host,
-            tags));
+      for (Expansion expansion : statsExpansions) {
+        // Histogram values are not converted, so the integral min and max stay integral
+        if (expansion == Expansion.MAX) {
+          addGauge(request, metric, expansion, snapshot.getMax(), timestamp, tags);
+        } else if (expansion == Expansion.MIN) {
+          addGauge(request, metric, expansion, snapshot.getMin(), timestamp, tags);
+        } else {
+          addGauge(request, metric, expansion, statistic(snapshot, expansion), timestamp, tags);
+        }
       }
     }
   }
 
-  private void reportCounter(String name, Counter counter, long timestamp, List<String> tags)
+  private void reportCounter(Transport.Request request, MetricCache.Entry metric, Counter counter, long timestamp, List<String> tags)
       throws IOException {
     // A Metrics counter is actually a Datadog Gauge.  Datadog Counters are for rates which is
     // similar to the Metrics Meter type.  Metrics counters have increment and decrement
@@ -199,46 +982,466 @@ public class DatadogReporter extends ScheduledReporter {
     // actually a gauge. The Metrics documentation agrees, stating:
     // "A counter is just a gauge for an AtomicLong instance. You can increment or decrement its
     // value. For example, we may want a more efficient way of measuring the pending job in a queue"
-    request.addGauge(new DatadogGauge(metricNameFormatter.format(name), counter.getCount(),
-        timestamp, host, tags));
+    // Counters used as counts of events can still be reported as Datadog counts, though.
+    if (!nativeCounts) {
+      addGauge(request, metric, null, counter.getCount(), timestamp, tags);
+    } else if (counter instanceof ResettingCounter) {
+      addCount(request, metric, null, ((ResettingCounter) counter).getCountAndReset(), timestamp,
+          tags);
+    } else {
+      addCount(request, metric, null, metric.delta(counter.getCount()), timestamp, tags);
+    }
   }
 
   /**
-   * Gauges are the only metrics which can throw exceptions. With a thrown exception all
-   * other metrics will not be reported to Datadog.
-  */
-  private void reportGauge(String name, Gauge gauge, long timestamp, List<String> tags) {
-    try {
-      final Number value = toNumber(gauge.getValue());
-      if (value != null) {
-        request.addGauge(new DatadogGauge(metricNameFormatter.format(name), value, timestamp, host,
-                tags));
+   * @param value The value of the gauge, evaluated by the gauge evaluator, or null if there is none
+   */
+  private void reportGauge(Transport.Request request, MetricCache.Entry metric, Number value, long timestamp, List<String> tags)
+      throws IOException {
+    if (isPrimitive(request) && (value instanceof Long || value instanceof Integer)) {
+      addGauge(request, metric, null, value.longValue(), timestamp, tags);
+    } else if (value != null) {
+      addGauge(request, metric, null, value.doubleValue(), value, timestamp, tags);
+    }
+  }
+
+  /**
+   * Read a {@link LongGauge} or a {@link DoubleGauge} without boxing its value.
+   */
+  private static boolean isPrimitiveGauge(Metric gauge) {
+    return gauge instanceof LongGauge || gauge instanceof DoubleGauge;
+  }
+
+  private void reportPrimitiveGauge(Transport.Request request, MetricCache.Entry metric, long timestamp, List<String> tags)
+      throws IOException {
+    if (metric.isQuarantined(tick)) {
+      return;
+    }
+    if (metric.getMetric() instanceof LongGauge) {
+      final long value;
+      try {
+        value = ((LongGauge) metric.getMetric()).getLongValue();
+      } catch (RuntimeException e) {
+        gaugeEvaluator.failed(metric, tick, tags, e);
+        return;
       }
-    } catch (Exception e) {
-      String errorMessage = String.format("Error reporting gauge metric (name: %s, tags: %s) to Datadog, " +
-              "continuing reporting other metrics.", name, tags);
-      LOG.error(errorMessage, e);
+      metric.evaluated();
+      addGauge(request, metric, null, value, timestamp, tags);
+    } else {
+      final double value;
+      try {
+        value = ((DoubleGauge) metric.getMetric()).getDoubleValue();
+      } catch (RuntimeException e) {
+        gaugeEvaluator.failed(metric, tick, tags, e);
+        return;
+      }
+      metric.evaluated();
+      addGauge(request, metric, null, value, timestamp, tags);
     }
   }
 
-  private Number toNumber(Object o) {
-    if (o instanceof Number) {
-      return (Number) o;
-    } else if (o instanceof Boolean) {
-      return ((Boolean) o) ? 1 : 0;
+  private void addGauge(Transport.Request request, MetricCache.Entry metric, Expansion expansion,
+                        double value, long timestamp, List<String> tags) throws IOException {
+    addGauge(request, metric, expansion, value, null, timestamp, tags);
+  }
+
+  /**
+   * Integral values stay integral, whether the request accepts primitives or not.
+   */
+  private void addGauge(Transport.Request request, MetricCache.Entry metric, Expansion expansion,
+                        long value, long timestamp, List<String> tags) throws IOException {
+    if (metric.isAggregated()) {
+      aggregate(request, metric, expansion, value, true, false);
+    } else if (!isPrimitive(request)) {
+      addGauge(request, metric, expansion, value, Long.valueOf(value), timestamp, tags);
+    } else if (heartbeat == 0 || metric.update(expansion, value, tick, tickHeartbeat)) {
+      final TaggedName name = (expansion == null) ? metric.getName() : metric.getName(expansion);
+      ((Transport.PrimitiveRequest) request).addGauge(name.getMetricName(), value, timestamp, host,
+          metric.getTags(expansion, tags));
     }
-    return null;
   }
 
-  private String appendExpansionSuffix(String name, Expansion expansion) {
-    return metricNameFormatter.format(name, expansion.toString());
+  /**
+   * Add a single series to the request. Requests accepting primitives get the value and the
+   * cached name and tags of the series as they are, other requests get a new series object.
+   *
+   * @param expansion The expansion of the metric, or null for the metric itself
+   * @param boxed     The value as given by the metric, or null to box the primitive value
+   */
+  private void addGauge(Transport.Request request, MetricCache.Entry metric, Expansion expansion,
+                        double value, Number boxed, long timestamp, List<String> tags)
+      throws IOException {
+    if (metric.isAggregated()) {
+      aggregate(request, metric, expansion, value, false, false);
+      return;
+    }
+    final double rounded = round(metric, expansion, value);
+    if (rounded != value) {
+      value = rounded;
+      boxed = null;
+    }
+    if (heartbeat > 0 && !metric.update(expansion, value, tick, tickHeartbeat)) {
+      return;
+    }
+    final TaggedName name = (expansion == null) ? metric.getName() : metric.getName(expansion);
+    if (isPrimitive(request)) {
+      ((Transport.PrimitiveRequest) request).addGauge(name.getMetricName(), value, timestamp, host,
+          metric.getTags(expansion, tags));
+    } else {
+      request.addGauge(new DatadogGauge(name, (boxed == null) ? Double.valueOf(value) : boxed,
+          timestamp, host, metric.getTags(expansion, tags)));
+    }
+  }
+
+  /**
+   * @return true if series are added to the request as primitives, as decided for the report,
+   * or for the report of a snapshot task
+   */
+  private boolean isPrimitive(Transport.Request request) {
+    return (request instanceof SnapshotBuffer) ? ((SnapshotBuffer) request).primitive
+        : primitiveRequest;
   }
 
-  private String prefix(String name) {
-    if (prefix == null) {
-      return name;
+  /**
+   * Add a Datadog count. With change detection on, counts of 0 are skipped until the heartbeat.
+   *
+   * @param expansion The expansion of the metric, or null for the metric itself
+   * @param value     The increase of the count since the metric was last counted
+   */
+  private void addCount(Transport.Request request, MetricCache.Entry metric, Expansion expansion,
+                        long value, long timestamp, List<String> tags) throws IOException {
+    final long interval = metric.counted(timestamp);
+    if (metric.isAggregated()) {
+      aggregate(request, metric, expansion, value, true, true);
+      return;
+    }
+    if (heartbeat > 0 && !metric.update(expansion, value, tick, tickHeartbeat) && value == 0) {
+      return;
+    }
+    final TaggedName name = (expansion == null) ? metric.getName() : metric.getName(expansion);
+    if (isPrimitive(request)) {
+      ((Transport.PrimitiveRequest) request).addCount(name.getMetricName(), value, timestamp,
+          interval, host, metric.getTags(expansion, tags));
     } else {
-      return String.format("%s.%s", prefix, name);
+      request.addCounter(new DatadogCount(name, value, timestamp,
+          (interval == 0) ? null : (Long) interval, host, metric.getTags(expansion, tags)));
+    }
+  }
+
+  /**
+   * Add the series merged from the rolled up or folded series of the report.
+   */
+  private void reportAggregated(Transport.Request request, List<SeriesAggregator.Series> sums)
+      throws IOException {
+    final long timestamp = cycleTimestamp;
+    for (SeriesAggregator.Series sum : sums) {
+      final long longValue = (long) sum.value;
+      final TagSet tagSet = TagSet.of(sum.name.getEncodedTags(), cycleTags);
+      if (primitiveRequest) {
+        final Transport.PrimitiveRequest primitive = (Transport.PrimitiveRequest) request;
+        if (sum.count) {
+          primitive.addCount(sum.name.getMetricName(), longValue, timestamp, 0, host, tagSet);
+        } else if (sum.integral) {
+          primitive.addGauge(sum.name.getMetricName(), longValue, timestamp, host, tagSet);
+        } else {
+          primitive.addGauge(sum.name.getMetricName(), sum.value, timestamp, host, tagSet);
+        }
+      } else if (sum.count) {
+        request.addCounter(new DatadogCount(sum.name, longValue, timestamp, null, host, tagSet));
+      } else {
+        request.addGauge(new DatadogGauge(sum.name,
+            sum.integral ? (Number) longValue : (Number) sum.value, timestamp, host, tagSet));
+      }
+    }
+  }
+
+  /**
+   * @return false if change detection is on and a sampling metric has neither recorded samples
+   * since its last snapshot nor reached its heartbeat, so its snapshot can be skipped
+   */
+  private boolean hasNewSamples(MetricCache.Entry metric, long count) {
+    return heartbeat == 0 || metric.updateCount(count, tick, tickHeartbeat);
+  }
+
+  /**
+   * Compute a single statistic of a snapshot, so that only the configured expansions pay for
+   * the work (e.g. the standard deviation pass or a quantile lookup).
+   */
+  private static double statistic(Snapshot snapshot, Expansion expansion) {
+    switch (expansion) {
+      case MAX:
+        return snapshot.getMax();
+      case MEAN:
+        return snapshot.getMean();
+      case MIN:
+        return snapshot.getMin();
+      case STD_DEV:
+        return snapshot.getStdDev();
+      case MEDIAN:
+        return snapshot.getMedian();
+      case P75:
+        return snapshot.get75thPercentile();
+      case P95:
+        return snapshot.get95thPercentile();
+      case P98:
+        return snapshot.get98thPercentile();
+      case P99:
+        return snapshot.get99thPercentile();
+      case P999:
+        return snapshot.get999thPercentile();
+      default:
+        throw new IllegalArgumentException("Not a snapshot expansion: " + expansion.name());
+    }
+  }
+
+  private static double rate(Metered meter, Expansion expansion) {
+    switch (expansion) {
+      case RATE_1_MINUTE:
+        return meter.getOneMinuteRate();
+      case RATE_5_MINUTE:
+        return meter.getFiveMinuteRate();
+      case RATE_15_MINUTE:
+        return meter.getFifteenMinuteRate();
+      case RATE_MEAN:
+        return meter.getMeanRate();
+      default:
+        throw new IllegalArgumentException("Not a rate expansion: " + expansion.name());
+    }
+  }
+
+  /**
+   * @return the candidates contained in the configured expansions, in reporting order
+   */
+  private static Expansion[] plan(Expansion[] candidates, EnumSet<Expansion> expansions) {
+    List<Expansion> planned = new ArrayList<Expansion>(candidates.length);
+    for (Expansion candidate : candidates) {
+      if (expansions.contains(candidate)) {
+        planned.add(candidate);
+      }
+    }
+    return planned.toArray(new Expansion[planned.size()]);
+  }
+
+  /**
+   * The series of a snapshot task, and the inputs of the series it merges, which are merged on
+   * the reporting thread when the buffer is replayed.
+   */
+  private final class SnapshotBuffer extends BufferedRequest {
+    private final boolean primitive;
+    private List<Aggregate> aggregates;
+
+    SnapshotBuffer(boolean primitive) {
+      this.primitive = primitive;
+    }
+
+    void aggregate(MetricCache.Entry metric, Expansion expansion, double value, boolean integral,
+                   boolean count) {
+      if (aggregates == null) {
+        aggregates = new ArrayList<Aggregate>();
+      }
+      aggregates.add(new Aggregate(metric, expansion, value, integral, count));
+    }
+
+    void replayAggregates() {
+      if (aggregates != null) {
+        for (Aggregate a : aggregates) {
+          DatadogReporter.this.aggregate(null, a.metric, a.expansion, a.value, a.integral, a.count);
+        }
+      }
+    }
+  }
+
+  /**
+   * A series of a snapshot task to merge, see
+   * {@link #aggregate(Transport.Request, MetricCache.Entry, Expansion, double, boolean, boolean)}.
+   */
+  private static final class Aggregate {
+    private final MetricCache.Entry metric;
+    private final Expansion expansion;
+    private final double value;
+    private final boolean integral;
+    private final boolean count;
+
+    private Aggregate(MetricCache.Entry metric, Expansion expansion, double value,
+                      boolean integral, boolean count) {
+      this.metric = metric;
+      this.expansion = expansion;
+      this.value = value;
+      this.integral = integral;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Reports histograms and timers into buffers, splitting the work over the snapshot pool. Each
+   * leaf task covers a contiguous range of metrics, so replaying the buffers in index order
+   * yields the same series, in the same order, as a sequential report.
+   */
+  private final class SnapshotTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final MetricCache.Entry[] entries;
+    private final SnapshotBuffer[] buffers;
+    private final int timerOffset;
+    private final int threshold;
+    private final long timestamp;
+    private final List<String> tags;
+    private final boolean primitive;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param primitive True if the series of the report are added as primitives
+     */
+    SnapshotTask(List<MetricCache.Entry> histograms,
+                 List<MetricCache.Entry> timers,
+                 long timestamp,
+                 List<String> tags,
+                 boolean primitive) {
+      int size = histograms.size() + timers.size();
+      this.entries = new MetricCache.Entry[size];
+      this.buffers = new SnapshotBuffer[size];
+      this.timerOffset = histograms.size();
+      this.threshold = Math.max(1, size / (snapshotPool.getParallelism() * 4));
+      this.timestamp = timestamp;
+      this.tags = tags;
+      this.primitive = primitive;
+      this.from = 0;
+      this.to = size;
+
+      int i = 0;
+      for (MetricCache.Entry entry : histograms) {
+        entries[i++] = entry;
+      }
+      for (MetricCache.Entry entry : timers) {
+        entries[i++] = entry;
+      }
+    }
+
+    private SnapshotTask(SnapshotTask parent, int from, int to) {
+      this.entries = parent.entries;
+      this.buffers = parent.buffers;
+      this.timerOffset = parent.timerOffset;
+      this.threshold = parent.threshold;
+      this.timestamp = parent.timestamp;
+      this.tags = parent.tags;
+      this.primitive = parent.primitive;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (from == to) {
+        return;
+      }
+      if (from < timerOffset && timerOffset < to) {
+        // Never mix histograms and timers in one buffer, they are replayed separately
+        invokeAll(new SnapshotTask(this, from, timerOffset), new SnapshotTask(this, timerOffset, to));
+      } else if (to - from > threshold) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new SnapshotTask(this, from, middle), new SnapshotTask(this, middle, to));
+      } else {
+        SnapshotBuffer buffer = new SnapshotBuffer(primitive);
+        try {
+          for (int i = from; i < to; i++) {
+            if (i < timerOffset) {
+              reportHistogram(buffer, entries[i], (Histogram) entries[i].getMetric(), timestamp, tags);
+            } else {
+              reportTimer(buffer, entries[i], (Timer) entries[i].getMetric(), timestamp, tags);
+            }
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        buffers[from] = buffer;
+      }
+    }
+
+    void replayHistograms(Transport.Request request) throws IOException {
+      replay(request, 0, timerOffset);
+    }
+
+    void replayTimers(Transport.Request request) throws IOException {
+      replay(request, timerOffset, buffers.length);
+    }
+
+    private void replay(Transport.Request request, int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        if (buffers[i] != null) {
+          buffers[i].replay(request);
+          buffers[i].replayAggregates();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the distinct priorities of the rules and of metrics matching no rule, highest first
+   */
+  private static int[] bandPriorities(List<Priority> priorities) {
+    final SortedSet<Integer> distinct = new TreeSet<Integer>(Collections.reverseOrder());
+    distinct.add(0);
+    for (Priority priority : priorities) {
+      distinct.add(priority.priority);
+    }
+    final int[] bandPriorities = new int[distinct.size()];
+    int band = 0;
+    for (Integer priority : distinct) {
+      bandPriorities[band++] = priority;
+    }
+    return bandPriorities;
+  }
+
+  /**
+   * Metrics matching a filter, reported once every given number of reporting periods.
+   */
+  private static final class Tier {
+    private final MetricFilter filter;
+    private final int periods;
+
+    private Tier(MetricFilter filter, int periods) {
+      this.filter = filter;
+      this.periods = periods;
+    }
+  }
+
+  /**
+   * Tags dropped from the series of the metrics matching a filter.
+   */
+  private static final class Rollup {
+    private final MetricFilter filter;
+    private final Set<String> tagKeys;
+
+    private Rollup(MetricFilter filter, Set<String> tagKeys) {
+      this.filter = filter;
+      this.tagKeys = tagKeys;
+    }
+  }
+
+  /**
+   * The precision of the values of the metrics matching a filter.
+   */
+  private static final class Rounding {
+    private final MetricFilter filter;
+    private final Precision precision;
+
+    private Rounding(MetricFilter filter, Precision precision) {
+      this.filter = filter;
+      this.precision = precision;
+    }
+  }
+
+  /**
+   * Metrics matching a filter, reported before metrics of lower priority.
+   */
+  private static final class Priority {
+    private final MetricFilter filter;
+    private final int priority;
+
+    private Priority(MetricFilter filter, int priority) {
+      this.filter = filter;
+      this.priority = priority;
     }
   }
 
@@ -290,6 +1493,30 @@ public class DatadogReporter extends ScheduledReporter {
     private Transport transport;
     private String prefix;
     private DynamicTagsCallback tagsCallback;
+    private long tagsTtl;
+    private ForkJoinPool snapshotPool;
+    private int heartbeat;
+    private int shards = 1;
+    private int asyncQueueSize;
+    private AsyncTransport.OverflowPolicy asyncOverflowPolicy;
+    private final List<Tier> tiers = new ArrayList<Tier>();
+    private final List<Priority> priorities = new ArrayList<Priority>();
+    private long budget;
+    private long gaugeTimeout;
+    private ExecutorService gaugeExecutor;
+    private int quarantineFailures;
+    private int quarantinePeriods;
+    private boolean nativeCounts;
+    private int cardinalityLimit;
+    private final List<Rollup> rollups = new ArrayList<Rollup>();
+    private final Map<Expansion, Precision> expansionPrecisions =
+        new EnumMap<Expansion, Precision>(Expansion.class);
+    private final List<Rounding> roundings = new ArrayList<Rounding>();
+    private long alignJitter = -1;
+    private int maxStretch = 1;
+    private long slowSend;
+    private MetricRegistry selfRegistry;
+    private boolean reportSelfMetrics;
 
     public Builder(MetricRegistry registry) {
       this.registry = registry;
@@ -319,6 +1546,24 @@ public class DatadogReporter extends ScheduledReporter {
 
     public Builder withDynamicTagCallback(DynamicTagsCallback tagsCallback) {
       this.tagsCallback = tagsCallback;
+      this.tagsTtl = 0;
+      return this;
+    }
+
+    /**
+     * Refresh the dynamic tags every given period on a thread of their own, rather than calling
+     * the callback at the start of every report, so that a slow callback does not stall reports.
+     * The tags are fetched once when the reporter starts, and refreshed from then on. Reports
+     * use the last refreshed tags, and the tags of the previous refresh when a refresh throws.
+     *
+     * @see CachedDynamicTagsCallback
+     */
+    public Builder withDynamicTagCallback(DynamicTagsCallback tagsCallback, long ttl, TimeUnit unit) {
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("Dynamic tags TTL must be positive, got " + ttl);
+      }
+      this.tagsCallback = tagsCallback;
+      this.tagsTtl = unit.toNanos(ttl);
       return this;
     }
 
@@ -379,14 +1624,406 @@ public class DatadogReporter extends ScheduledReporter {
       return this;
     }
 
+    /**
+     * Take histogram and timer snapshots concurrently on the given pool instead of one after
+     * the other on the reporting thread. Series are still added to a single request, in the
+     * same order as a sequential report. The pool is not shut down by the reporter.
+     *
+     * @param snapshotPool The pool to take snapshots on, or null to report sequentially.
+     */
+    public Builder withSnapshotPool(ForkJoinPool snapshotPool) {
+      this.snapshotPool = snapshotPool;
+      return this;
+    }
+
+    /**
+     * Only send series whose value changed since they were last sent, and skip the snapshots of
+     * histograms and timers that recorded no samples since their last snapshot. Unchanged series
+     * are still sent once every {@code heartbeat} reports, so they do not go stale in Datadog.
+     *
+     * @param heartbeat The number of reports after which an unchanged series is sent again.
+     *                  1 sends every series on every report.
+     */
+    public Builder withChangeDetection(int heartbeat) {
+      if (heartbeat < 1) {
+        throw new IllegalArgumentException("Heartbeat must be at least 1, got " + heartbeat);
+      }
+      this.heartbeat = heartbeat;
+      return this;
+    }
+
+    /**
+     * Split the registry into shards by metric name and report each shard at its own offset
+     * within the reporting period, with its own request. This spreads the collection and
+     * sending work over the period instead of doing it all at once. Each metric is still
+     * reported once per period, and all shards of a period share the same timestamp.
+     *
+     * @param shards The number of shards, 1 reports the whole registry at once.
+     */
+    public Builder withShards(int shards) {
+      if (shards < 1) {
+        throw new IllegalArgumentException("Shards must be at least 1, got " + shards);
+      }
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * Send requests asynchronously, so that a slow transport does not delay the next
+     * collection. Finished requests are queued and sent by a dedicated thread, and the queue is
+     * drained on {@link DatadogReporter#stop()}. Queue depth, dropped requests, failures and
+     * send latency are registered in the registry of
+     * {@link #withSelfMetrics(MetricRegistry, boolean)}, if any.
+     *
+     * @param queueSize The maximum number of requests waiting to be sent.
+     * @param overflowPolicy What to do when the queue is full.
+     * @see AsyncTransport
+     */
+    public Builder withAsyncSend(int queueSize, AsyncTransport.OverflowPolicy overflowPolicy) {
+      this.asyncQueueSize = queueSize;
+      this.asyncOverflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /**
+     * Report the metrics matching the given filter only once every {@code periods} reporting
+     * periods, e.g. to send slow-moving gauges less often than request latencies. A metric
+     * belongs to the first tier it matches; metrics matching no tier are reported every period.
+     * Metrics are bucketed by tier when they are added to the registry, so that a report only
+     * visits the tiers due in its period.
+     *
+     * @param filter The metrics in the tier
+     * @param periods The number of reporting periods between two reports of these metrics
+     */
+    public Builder withIntervalTier(MetricFilter filter, int periods) {
+      if (periods < 1) {
+        throw new IllegalArgumentException("Periods must be at least 1, got " + periods);
+      }
+      this.tiers.add(new Tier(filter, periods));
+      return this;
+    }
+
+    /**
+     * Report the metrics whose name contains a match of the given pattern only once every
+     * {@code periods} reporting periods.
+     *
+     * @see #withIntervalTier(MetricFilter, int)
+     */
+    public Builder withIntervalTier(Pattern namePattern, int periods) {
+      return withIntervalTier(patternFilter(namePattern), periods);
+    }
+
+    /**
+     * Collect the metrics matching the given filter before metrics of lower priority. A metric
+     * has the priority of the first rule it matches; metrics matching no rule have priority 0.
+     * Only metrics of the highest priority are never delayed by the time budget. All priorities
+     * are still sent together, in the request of the report.
+     *
+     * @param filter The metrics having the priority
+     * @param priority The priority, higher priorities being collected first
+     * @see #withTimeBudget(long, TimeUnit)
+     */
+    public Builder withPriority(MetricFilter filter, int priority) {
+      this.priorities.add(new Priority(filter, priority));
+      return this;
+    }
+
+    /**
+     * Report the metrics whose name contains a match of the given pattern before metrics of
+     * lower priority.
+     *
+     * @see #withPriority(MetricFilter, int)
+     */
+    public Builder withPriority(Pattern namePattern, int priority) {
+      return withPriority(patternFilter(namePattern), priority);
+    }
+
+    /**
+     * Limit the time spent in each report. Once it is spent, metrics below the highest priority
+     * are deferred to the next report. A deferred metric still over budget in the next report is
+     * reported without its snapshot statistics rather than deferred again. With a snapshot pool,
+     * snapshots below the highest priority are taken in chunks, and count against the budget. Reports finishing late
+     * are counted as overruns. With shards, the budget applies to each shard.
+     *
+     * @see #withPriority(MetricFilter, int)
+     * @see DatadogReporter#getOverruns()
+     */
+    public Builder withTimeBudget(long budget, TimeUnit unit) {
+      if (budget <= 0) {
+        throw new IllegalArgumentException("Time budget must be positive, got " + budget);
+      }
+      this.budget = unit.toNanos(budget);
+      return this;
+    }
+
+    /**
+     * Evaluate gauges concurrently, waiting at most the given time for the gauges of a report.
+     * A gauge that times out is reported with its last value, and is not evaluated again before
+     * its pending evaluation completes. Gauges run on virtual threads when the runtime has them,
+     * else on a small pool of daemon threads, unless an executor is given.
+     *
+     * @see #withGaugeExecutor(ExecutorService)
+     */
+    public Builder withGaugeTimeout(long timeout, TimeUnit unit) {
+      if (timeout <= 0) {
+        throw new IllegalArgumentException("Gauge timeout must be positive, got " + timeout);
+      }
+      this.gaugeTimeout = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Evaluate gauges on the given executor when a gauge timeout is set. The executor is not
+     * shut down by the reporter.
+     *
+     * @see #withGaugeTimeout(long, TimeUnit)
+     */
+    public Builder withGaugeExecutor(ExecutorService gaugeExecutor) {
+      this.gaugeExecutor = gaugeExecutor;
+      return this;
+    }
+
+    /**
+     * Skip gauges that failed {@code failures} reports in a row, by throwing, returning a
+     * non-numeric value or timing out, for the next {@code periods} reports. They are then
+     * evaluated again, and quarantined again by the next failure.
+     */
+    public Builder withGaugeQuarantine(int failures, int periods) {
+      if (failures < 1 || periods < 1) {
+        throw new IllegalArgumentException("Quarantine failures and periods must be at least 1");
+      }
+      this.quarantineFailures = failures;
+      this.quarantinePeriods = periods;
+      return this;
+    }
+
+    /**
+     * @return true if dynamic tags are cached, and refreshed on a thread of their own
+     */
+    boolean cachesTags() {
+      return tagsCallback != null && tagsTtl > 0;
+    }
+
+    /**
+     * @return true if gauges are evaluated concurrently without a given executor
+     */
+    boolean needsGaugeExecutor() {
+      return gaugeTimeout > 0 && gaugeExecutor == null;
+    }
+
+    /**
+     * @param sharedGaugeExecutor The executor to evaluate gauges on when no executor was given,
+     *                            not shut down by the reporter, or null to create one
+     */
+    private GaugeEvaluator buildGaugeEvaluator(ExecutorService sharedGaugeExecutor,
+                                               SelfMetrics selfMetrics) {
+      ExecutorService executor = null;
+      boolean ownsExecutor = false;
+      if (gaugeTimeout > 0) {
+        executor = (gaugeExecutor != null) ? gaugeExecutor : sharedGaugeExecutor;
+        if (executor == null) {
+          executor = GaugeEvaluator.newExecutor(4);
+          ownsExecutor = true;
+        }
+      }
+      return new GaugeEvaluator(executor, ownsExecutor, gaugeTimeout, quarantineFailures,
+          quarantinePeriods, clock, selfMetrics);
+    }
+
+    /**
+     * Record how long reports take, split into collection, which includes the serialization of
+     * HTTP requests, and sending, as well as overruns, deferrals and gauge failures, in the given
+     * registry. Give the same registry to the transport to also record series and payload sizes.
+     * <p/>
+     * The registry can be exposed over JMX by a {@code JmxReporter}. Reporters sharing the
+     * registry record their metrics under names of their own, see {@link SelfMetrics}, which are
+     * removed when the reporter stops.
+     *
+     * @param report True to also report the metrics of the given registry to Datadog, along with
+     *               the metrics of the reporter's registry
+     */
+    public Builder withSelfMetrics(MetricRegistry selfRegistry, boolean report) {
+      this.selfRegistry = selfRegistry;
+      this.reportSelfMetrics = report;
+      return this;
+    }
+
+    /**
+     * Report counters, meters and timers as Datadog counts: the increase of their count since
+     * they were last reported, which can be summed across hosts and turned into exact rates by
+     * Datadog. This replaces the count and rate series of meters and timers with a single series.
+     * Counters extending {@link ResettingCounter} are reset instead of compared to their
+     * previous count.
+     */
+    public Builder withNativeCounts() {
+      this.nativeCounts = true;
+      return this;
+    }
+
+    /**
+     * Report at most {@code valuesPerTag} distinct values of each tag key of each metric name,
+     * the values with the most activity, and fold the tags of the other values into
+     * {@code key:other}. Folded series are merged into one series as by
+     * {@link #withRollup(MetricFilter, String...)}; folded gauges are not reported.
+     * See {@link DatadogReporter#getFoldedMetrics()}.
+     */
+    public Builder withCardinalityLimit(int valuesPerTag) {
+      if (valuesPerTag < 1) {
+        throw new IllegalArgumentException("Cardinality limit must be at least 1, got " + valuesPerTag);
+      }
+      this.cardinalityLimit = valuesPerTag;
+      return this;
+    }
+
+    /**
+     * Drop the tags of the given keys from the series of the counters, meters, histograms and
+     * timers matching the given filter, and report the series with the same remaining tags as
+     * one series. Counts, counter values and rates are summed, the max and min of histograms
+     * and timers are merged; other statistics, which cannot be merged from snapshots, are not
+     * reported. A metric is rolled up by the first rule it matches.
+     */
+    public Builder withRollup(MetricFilter filter, String... tagKeys) {
+      this.rollups.add(new Rollup(filter, new HashSet<String>(Arrays.asList(tagKeys))));
+      return this;
+    }
+
+    /**
+     * Roll up the metrics whose name contains a match of the given pattern.
+     *
+     * @see #withRollup(MetricFilter, String...)
+     */
+    public Builder withRollup(Pattern namePattern, String... tagKeys) {
+      return withRollup(patternFilter(namePattern), tagKeys);
+    }
+
+    /**
+     * Round the non-integral values of the given expansion to the given precision, e.g. to
+     * 3 significant digits for percentiles, to shrink requests. Integral values are sent as
+     * they are.
+     *
+     * @see #withPrecision(MetricFilter, Precision)
+     */
+    public Builder withPrecision(Expansion expansion, Precision precision) {
+      this.expansionPrecisions.put(expansion, precision);
+      return this;
+    }
+
+    /**
+     * Round the non-integral values of the metrics matching the given filter, and of all their
+     * expansions, to the given precision. A metric is rounded by the first rule it matches,
+     * which takes precedence over the precision of its expansions.
+     */
+    public Builder withPrecision(MetricFilter filter, Precision precision) {
+      this.roundings.add(new Rounding(filter, precision));
+      return this;
+    }
+
+    /**
+     * Round the values of the metrics whose name contains a match of the given pattern.
+     *
+     * @see #withPrecision(MetricFilter, Precision)
+     */
+    public Builder withPrecision(Pattern namePattern, Precision precision) {
+      return withPrecision(patternFilter(namePattern), precision);
+    }
+
+    /**
+     * Report on wall-clock multiples of the period, e.g. at :00, :10, :20 for a period of 10
+     * seconds, and stamp all series with the boundary, so that hosts report the same timestamps
+     * and fleet-wide sums do not show artifacts from reports falling on both sides of Datadog's
+     * rollup intervals.
+     *
+     * @see #withAlignedTicks(long, TimeUnit)
+     */
+    public Builder withAlignedTicks() {
+      this.alignJitter = 0;
+      return this;
+    }
+
+    /**
+     * Report on wall-clock multiples of the period, delayed by a random jitter of at most the
+     * given time, chosen once per reporter, so that hosts do not all send at once. Series are
+     * still stamped with the boundary. The jitter must be less than the period.
+     */
+    public Builder withAlignedTicks(long maxJitter, TimeUnit unit) {
+      if (maxJitter < 0) {
+        throw new IllegalArgumentException("Aligned ticks jitter must not be negative, got " + maxJitter);
+      }
+      this.alignJitter = unit.toMillis(maxJitter);
+      return this;
+    }
+
+    /**
+     * Report less often while the transport is backpressured: when a send fails or takes more
+     * than {@code slowSend}, or the transport reports backpressure, e.g. a throttled HTTP request
+     * or an async queue at least half full, only every other period is reported, then every
+     * fourth, up to every {@code maxStretch}-th period. The interval halves back once sends are
+     * healthy again. A slow send of 0 only reacts to failures and transport backpressure.
+     *
+     * @see DatadogReporter#getEffectiveInterval()
+     */
+    public Builder withAdaptiveInterval(int maxStretch, long slowSend, TimeUnit unit) {
+      if (maxStretch < 1 || slowSend < 0) {
+        throw new IllegalArgumentException("Maximum stretch must be at least 1 and slow send not negative");
+      }
+      this.maxStretch = maxStretch;
+      this.slowSend = unit.toNanos(slowSend);
+      return this;
+    }
+
+    /**
+     * @return a filter of the metrics whose name contains a match of the given pattern
+     */
+    private static MetricFilter patternFilter(final Pattern namePattern) {
+      return new MetricFilter() {
+        public boolean matches(String name, Metric metric) {
+          return namePattern.matcher(name).find();
+        }
+      };
+    }
+
     public DatadogReporter build() {
+      return build(null, null, null);
+    }
+
+    /**
+     * Build a reporter sharing the given executors, which it does not shut down: it is scheduled
+     * on the first one, refreshes its cached dynamic tags on the second one, and evaluates its
+     * concurrent gauges on the third one unless it was given a gauge executor. Null executors are
+     * created by the reporter.
+     */
+    DatadogReporter build(ScheduledExecutorService sharedExecutor,
+                          ScheduledExecutorService sharedTagsExecutor,
+                          ExecutorService sharedGaugeExecutor) {
       if (transport == null) {
         throw new IllegalArgumentException("Transport for datadog reporter is null. " +
             "Please set a valid transport");
       }
+      Transport transport = this.transport;
+      if (asyncOverflowPolicy != null) {
+        transport = new AsyncTransport.Builder(transport)
+            .withQueueSize(asyncQueueSize)
+            .withOverflowPolicy(asyncOverflowPolicy)
+            .withMetricRegistry(selfRegistry)
+            .build();
+      }
+      // Named apart from the other reporters recording their metrics in the same registry
+      final SelfMetrics selfMetrics = (selfRegistry != null)
+          ? SelfMetrics.claim(selfRegistry, DatadogReporter.class) : null;
+      final boolean cachesTags = cachesTags();
+      final ScheduledExecutorService executor = (sharedExecutor != null) ? sharedExecutor
+          : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread =
+                  new Thread(runnable, "datadog-reporter-" + THREAD_ID.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
       return new DatadogReporter(
           this.registry,
-          this.transport,
+          transport,
+          asyncOverflowPolicy != null,
           this.filter,
           this.clock,
           this.host,
@@ -396,7 +2033,31 @@ public class DatadogReporter extends ScheduledReporter {
           this.metricNameFormatter,
           this.tags,
           this.prefix,
-          this.tagsCallback);
+          (cachesTags) ? CachedDynamicTagsCallback.forCallback(this.tagsCallback)
+              .withTtl(this.tagsTtl, TimeUnit.NANOSECONDS)
+              .withExecutor(sharedTagsExecutor)
+              .build() : this.tagsCallback,
+          cachesTags,
+          this.snapshotPool,
+          this.heartbeat,
+          this.shards,
+          this.tiers,
+          this.priorities,
+          this.budget,
+          buildGaugeEvaluator(sharedGaugeExecutor, selfMetrics),
+          this.nativeCounts,
+          this.cardinalityLimit,
+          new ArrayList<Rollup>(this.rollups),
+          new EnumMap<Expansion, Precision>(this.expansionPrecisions),
+          new ArrayList<Rounding>(this.roundings),
+          this.alignJitter,
+          this.maxStretch,
+          this.slowSend,
+          this.selfRegistry,
+          selfMetrics,
+          this.reportSelfMetrics,
+          executor,
+          sharedExecutor == null);
     }
   }
 }
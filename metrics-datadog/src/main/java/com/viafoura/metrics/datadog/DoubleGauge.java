@@ -0,0 +1,17 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * A gauge of double values, which {@link DatadogReporter DatadogReporter} reads through
+ * {@link #getDoubleValue()} without boxing. Other reporters read it as a regular gauge.
+ */
+public interface DoubleGauge extends Gauge<Double> {
+
+  public double getDoubleValue();
+
+  @Override
+  default Double getValue() {
+    return getDoubleValue();
+  }
+}
@@ -0,0 +1,54 @@
+package com.viafoura.metrics.datadog;
+
+/**
+ * Java Flight Recorder events of the reporting phases and transport sends, to correlate
+ * latency spikes with metrics reporting.
+ * <p/>
+ * This is the Java 8 version, which records nothing. The jar also holds a Java 11 version
+ * under {@code META-INF/versions/11}, used instead on Java 11 and later, which records
+ * {@code com.viafoura.metrics.datadog.ReportPhase} and
+ * {@code com.viafoura.metrics.datadog.TransportSend} events. Both versions return null from
+ * the begin methods when the events are not recorded, so the end methods cost nothing then.
+ */
+public final class FlightRecorderEvents {
+
+  private FlightRecorderEvents() {
+  }
+
+  /**
+   * Start timing a reporting phase.
+   *
+   * @return the pending event, or null if it is not recorded
+   */
+  public static Object beginPhase() {
+    return null;
+  }
+
+  /**
+   * @param event The event returned by {@link #beginPhase()}
+   * @param phase The phase of the report, e.g. "index", "snapshot", "serialize" or "send"
+   * @param shard The shard reported, or -1 for a whole report
+   */
+  public static void endPhase(Object event, String phase, int shard) {
+  }
+
+  /**
+   * Start timing the send of a request by a transport.
+   *
+   * @return the pending event, or null if it is not recorded
+   */
+  public static Object beginSend() {
+    return null;
+  }
+
+  /**
+   * @param event     The event returned by {@link #beginSend()}
+   * @param transport The transport, e.g. "http" or "udp"
+   * @param series    The number of series of the request
+   * @param bytes     The size of the request body, or -1 if unknown
+   * @param outcome   The outcome of the send, e.g. an HTTP status code or an error
+   */
+  public static void endSend(Object event, String transport, int series, long bytes,
+                             String outcome) {
+  }
+}
@@ -0,0 +1,229 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the gauges reported by {@link DatadogReporter DatadogReporter}.
+ * <p/>
+ * Gauges are evaluated on the reporting thread, or concurrently on an executor with a timeout,
+ * so that a slow gauge does not stall the report. A gauge that times out is reported with its
+ * last numeric value, and is not evaluated again before its pending evaluation completes.
+ * <p/>
+ * Optionally, gauges failing a number of reports in a row, by throwing, returning a non-numeric
+ * value or timing out, are quarantined: they are skipped for a number of reports, then evaluated
+ * once again.
+ */
+class GaugeEvaluator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GaugeEvaluator.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final long timeout;
+  private final int quarantineFailures;
+  private final int quarantinePeriods;
+  private final Clock clock;
+  private final Counter failures;
+  private final Counter timeouts;
+  private final Counter quarantines;
+  private final Counter nonNumeric;
+
+  /**
+   * @param executor           The executor to evaluate gauges on, or null to evaluate them on
+   *                           the reporting thread
+   * @param ownsExecutor       True to shut the executor down when the reporter stops
+   * @param timeout            How long to wait for the gauges of a report, in nanoseconds
+   * @param quarantineFailures The number of failed reports in a row quarantining a gauge, or 0
+   *                           to never quarantine gauges
+   * @param quarantinePeriods  The number of reports a quarantined gauge is skipped for
+   * @param selfMetrics        The metrics of the reporter to record failures, timeouts,
+   *                           quarantines and non-numeric values in, or null
+   */
+  GaugeEvaluator(ExecutorService executor,
+                 boolean ownsExecutor,
+                 long timeout,
+                 int quarantineFailures,
+                 int quarantinePeriods,
+                 Clock clock,
+                 SelfMetrics selfMetrics) {
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.timeout = timeout;
+    this.quarantineFailures = quarantineFailures;
+    this.quarantinePeriods = quarantinePeriods;
+    this.clock = clock;
+    if (selfMetrics != null) {
+      this.failures = selfMetrics.counter(MetricRegistry.name("gauges", "failures"));
+      this.timeouts = selfMetrics.counter(MetricRegistry.name("gauges", "timeouts"));
+      this.quarantines = selfMetrics.counter(MetricRegistry.name("gauges", "quarantines"));
+      this.nonNumeric = selfMetrics.counter(MetricRegistry.name("gauges", "non-numeric"));
+    } else {
+      this.failures = new Counter();
+      this.timeouts = new Counter();
+      this.quarantines = new Counter();
+      this.nonNumeric = new Counter();
+    }
+  }
+
+  /**
+   * @return an executor running each evaluation on its own virtual thread when the runtime has
+   * them, else a fixed pool of daemon threads
+   */
+  static ExecutorService newExecutor(int threads) {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "datadog-gauge-" + THREAD_ID.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  boolean isConcurrent() {
+    return executor != null;
+  }
+
+  /**
+   * Evaluate a gauge on the calling thread.
+   *
+   * @return the value to report, or null if there is none
+   */
+  Number evaluate(MetricCache.Entry entry, long report, List<String> tags) {
+    if (entry.isQuarantined(report)) {
+      return null;
+    }
+    final Object value;
+    try {
+      value = ((Gauge) entry.getMetric()).getValue();
+    } catch (Exception e) {
+      failed(entry, report, tags, e);
+      return null;
+    }
+    return evaluated(entry, report, tags, value);
+  }
+
+  /**
+   * Evaluate gauges concurrently, waiting for them for at most the timeout.
+   *
+   * @return the values to report, in the order of the entries, null for gauges with none
+   */
+  Number[] evaluateAll(List<MetricCache.Entry> entries, long report, List<String> tags) {
+    final Number[] values = new Number[entries.size()];
+    for (final MetricCache.Entry entry : entries) {
+      final Future<Object> pending = entry.getEvaluation();
+      if (!entry.isQuarantined(report) && (pending == null || pending.isDone())) {
+        entry.setEvaluation(executor.submit(new Callable<Object>() {
+          public Object call() {
+            return ((Gauge) entry.getMetric()).getValue();
+          }
+        }));
+      }
+    }
+
+    final long deadline = clock.getTick() + timeout;
+    for (int i = 0; i < values.length; i++) {
+      final MetricCache.Entry entry = entries.get(i);
+      if (entry.isQuarantined(report)) {
+        continue;
+      }
+      try {
+        final long remaining = Math.max(0, deadline - clock.getTick());
+        values[i] = evaluated(entry, report, tags,
+            entry.getEvaluation().get(remaining, TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        LOG.debug("Gauge {} timed out, reporting its last value", entry.getRegistryName());
+        values[i] = entry.getLastValue();
+        timeouts.inc();
+        failed(entry, report, tags, null);
+      } catch (ExecutionException e) {
+        failed(entry, report, tags, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return values;
+  }
+
+  void stop() {
+    if (ownsExecutor) {
+      executor.shutdownNow();
+    }
+  }
+
+  private Number evaluated(MetricCache.Entry entry, long report, List<String> tags, Object value) {
+    final Number number = toNumber(value);
+    if (number == null) {
+      // Null and non-numeric values, e.g. of gauges of strings, are no errors unless quarantined
+      nonNumeric.inc();
+      if (quarantineFailures > 0) {
+        strike(entry, report);
+      }
+    } else {
+      entry.evaluated(number);
+    }
+    return number;
+  }
+
+  /**
+   * Record a failed evaluation of a gauge, quarantining it if it failed too many reports in a row.
+   *
+   * @param cause The exception thrown by the gauge, or null if it timed out
+   */
+  void failed(MetricCache.Entry entry, long report, List<String> tags, Throwable cause) {
+    this.failures.inc();
+    if (!strike(entry, report) && cause != null) {
+      String errorMessage = String.format("Error reporting gauge metric (name: %s, tags: %s) to Datadog, " +
+          "continuing reporting other metrics.", entry.getName().encode(), tags);
+      LOG.error(errorMessage, cause);
+    }
+  }
+
+  /**
+   * Count a failed report of a gauge, quarantining it if it failed too many reports in a row.
+   *
+   * @return true if the gauge was quarantined
+   */
+  private boolean strike(MetricCache.Entry entry, long report) {
+    final int failures = entry.failed();
+    if (quarantineFailures > 0 && failures >= quarantineFailures) {
+      entry.quarantine(report + quarantinePeriods + 1);
+      quarantines.inc();
+      LOG.warn("Gauge {} failed {} reports in a row, skipping it for the next {} reports",
+          entry.getRegistryName(), failures, quarantinePeriods);
+      return true;
+    }
+    return false;
+  }
+
+  private static Number toNumber(Object o) {
+    if (o instanceof Number) {
+      return (Number) o;
+    } else if (o instanceof Boolean) {
+      return ((Boolean) o) ? 1 : 0;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,17 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * A gauge of long values, which {@link DatadogReporter DatadogReporter} reads through
+ * {@link #getLongValue()} without boxing. Other reporters read it as a regular gauge.
+ */
+public interface LongGauge extends Gauge<Long> {
+
+  public long getLongValue();
+
+  @Override
+  default Long getValue() {
+    return getLongValue();
+  }
+}
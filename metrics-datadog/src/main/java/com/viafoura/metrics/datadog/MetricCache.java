@@ -0,0 +1,699 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.viafoura.metrics.datadog.model.TagSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+
+import static com.viafoura.metrics.datadog.DatadogReporter.Expansion;
+
+/**
+ * Per-metric state kept by {@link DatadogReporter DatadogReporter} across reporting cycles,
+ * keyed by registry name. Entries are created when a metric is added to the registry, or the
+ * first time a metric is reported, and are evicted when the metric is removed from the registry.
+ * <p/>
+ * The cache also indexes the metrics of the registry matching the reporter's filter by type, so
+ * that reporting does not have to copy and filter the registry. The filter is evaluated once per
+ * metric, when the metric is added, and so is the interval tier of the metric, which buckets
+ * indexed metrics so that a report only visits the tiers due in its period. Indexed metrics are
+ * sorted by name, like the maps of a registry, so that reports add their series in the same
+ * order whether snapshots are taken sequentially or on a pool.
+ */
+class MetricCache extends MetricRegistryListener.Base {
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final Index gauges = new Index();
+  private final Index counters = new Index();
+  private final Index histograms = new Index();
+  private final Index meters = new Index();
+  private final Index timers = new Index();
+  private final MetricNameFormatter metricNameFormatter;
+  private final String prefix;
+  private final MetricFilter filter;
+  // Releases the sketches of removed entries, null without a cardinality limit
+  private final CardinalityGuard cardinalityGuard;
+  private final Tiering tiering;
+
+  /**
+   * Decides the interval tier of a metric, when it is indexed.
+   */
+  interface Tiering {
+    /**
+     * @return the number of reporting periods between two reports of the metric, at least 1
+     */
+    int periods(String name, Metric metric);
+  }
+
+  private static final Tiering EVERY_PERIOD = new Tiering() {
+    public int periods(String name, Metric metric) {
+      return 1;
+    }
+  };
+
+  MetricCache(MetricNameFormatter metricNameFormatter, String prefix, MetricFilter filter) {
+    this(metricNameFormatter, prefix, filter, null);
+  }
+
+  MetricCache(MetricNameFormatter metricNameFormatter, String prefix, MetricFilter filter,
+              CardinalityGuard cardinalityGuard) {
+    this(metricNameFormatter, prefix, filter, cardinalityGuard, EVERY_PERIOD);
+  }
+
+  MetricCache(MetricNameFormatter metricNameFormatter, String prefix, MetricFilter filter,
+              CardinalityGuard cardinalityGuard, Tiering tiering) {
+    this.metricNameFormatter = metricNameFormatter;
+    this.prefix = prefix;
+    this.filter = filter;
+    this.cardinalityGuard = cardinalityGuard;
+    this.tiering = tiering;
+  }
+
+  /**
+   * @return the entry for the given registry name, resolving its Datadog name on first sight
+   */
+  Entry get(String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry(name);
+      Entry existing = entries.putIfAbsent(name, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * @return the entry for the given registry name, holding the given metric
+   */
+  Entry get(String name, Metric metric) {
+    final Entry entry = get(name);
+    entry.metric = metric;
+    return entry;
+  }
+
+  /**
+   * @return the indexed gauges, sorted by name
+   */
+  Collection<Entry> getGauges() {
+    return gauges.entries.values();
+  }
+
+  Collection<Entry> getCounters() {
+    return counters.entries.values();
+  }
+
+  Collection<Entry> getHistograms() {
+    return histograms.entries.values();
+  }
+
+  Collection<Entry> getMeters() {
+    return meters.entries.values();
+  }
+
+  Collection<Entry> getTimers() {
+    return timers.entries.values();
+  }
+
+  /**
+   * @return the indexed gauges due in the given report, see {@link Index#due(long)}
+   */
+  Collection<Entry> getGauges(long tick) {
+    return gauges.due(tick);
+  }
+
+  Collection<Entry> getCounters(long tick) {
+    return counters.due(tick);
+  }
+
+  Collection<Entry> getHistograms(long tick) {
+    return histograms.due(tick);
+  }
+
+  Collection<Entry> getMeters(long tick) {
+    return meters.due(tick);
+  }
+
+  Collection<Entry> getTimers(long tick) {
+    return timers.due(tick);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  void remove(String name) {
+    final Entry entry = entries.remove(name);
+    if (entry != null && cardinalityGuard != null) {
+      cardinalityGuard.release(entry);
+    }
+  }
+
+  private void add(Index index, String name, Metric metric) {
+    final Entry entry = get(name, metric);
+    if (metric instanceof Counting) {
+      // Counts from before the metric was added, or before the reporter was built, are not an
+      // increase; seeded before the entry is indexed, and so visible to the reporting thread
+      entry.seedCount(((Counting) metric).getCount());
+    }
+    if (filter.matches(name, metric)) {
+      entry.periods = tiering.periods(name, metric);
+      index.put(name, entry);
+    }
+  }
+
+  private void remove(Index index, String name) {
+    index.remove(name);
+    remove(name);
+  }
+
+  private String prefix(String name) {
+    if (prefix == null) {
+      return name;
+    } else {
+      return prefix + '.' + name;
+    }
+  }
+
+  @Override
+  public void onGaugeAdded(String name, Gauge<?> gauge) {
+    add(gauges, name, gauge);
+  }
+
+  @Override
+  public void onGaugeRemoved(String name) {
+    remove(gauges, name);
+  }
+
+  @Override
+  public void onCounterAdded(String name, Counter counter) {
+    add(counters, name, counter);
+  }
+
+  @Override
+  public void onCounterRemoved(String name) {
+    remove(counters, name);
+  }
+
+  @Override
+  public void onHistogramAdded(String name, Histogram histogram) {
+    add(histograms, name, histogram);
+  }
+
+  @Override
+  public void onHistogramRemoved(String name) {
+    remove(histograms, name);
+  }
+
+  @Override
+  public void onMeterAdded(String name, Meter meter) {
+    add(meters, name, meter);
+  }
+
+  @Override
+  public void onMeterRemoved(String name) {
+    remove(meters, name);
+  }
+
+  @Override
+  public void onTimerAdded(String name, Timer timer) {
+    add(timers, name, timer);
+  }
+
+  @Override
+  public void onTimerRemoved(String name) {
+    remove(timers, name);
+  }
+
+  private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+    public int compare(Entry first, Entry second) {
+      return first.registryName.compareTo(second.registryName);
+    }
+  };
+
+  /**
+   * The indexed metrics of one type, sorted by name, also bucketed by their number of periods
+   * between reports.
+   */
+  static final class Index {
+    private final ConcurrentNavigableMap<String, Entry> entries =
+        new ConcurrentSkipListMap<String, Entry>();
+    private final ConcurrentMap<Integer, ConcurrentNavigableMap<String, Entry>> tiers =
+        new ConcurrentHashMap<Integer, ConcurrentNavigableMap<String, Entry>>();
+    // Entries deferred by the last report, due in the next one whatever their tier
+    private final Set<Entry> deferred =
+        Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+
+    private ConcurrentNavigableMap<String, Entry> tier(int periods) {
+      ConcurrentNavigableMap<String, Entry> tier = tiers.get(periods);
+      if (tier == null) {
+        tier = new ConcurrentSkipListMap<String, Entry>();
+        ConcurrentNavigableMap<String, Entry> existing = tiers.putIfAbsent(periods, tier);
+        if (existing != null) {
+          tier = existing;
+        }
+      }
+      return tier;
+    }
+
+    private void put(String name, Entry entry) {
+      entry.index = this;
+      entries.put(name, entry);
+      tier(entry.periods).put(name, entry);
+    }
+
+    private void remove(String name) {
+      final Entry entry = entries.remove(name);
+      if (entry != null) {
+        tier(entry.periods).remove(name);
+        deferred.remove(entry);
+      }
+    }
+
+    /**
+     * @param tick The number of the report, starting at 1
+     * @return the entries of the tiers due in the given report, whose number of periods divides
+     * the number of reports before it, and the entries deferred by the last report, sorted by
+     * name. Without tiers or deferred entries, a view of the index rather than a copy.
+     */
+    Collection<Entry> due(long tick) {
+      Collection<Entry> due = null;
+      List<Entry> merged = null;
+      for (Map.Entry<Integer, ConcurrentNavigableMap<String, Entry>> tier : tiers.entrySet()) {
+        if ((tick - 1) % tier.getKey() != 0 || tier.getValue().isEmpty()) {
+          continue;
+        }
+        if (due == null) {
+          due = tier.getValue().values();
+        } else {
+          if (merged == null) {
+            merged = new ArrayList<Entry>(due);
+          }
+          merged.addAll(tier.getValue().values());
+        }
+      }
+      for (Entry entry : deferred) {
+        // Entries of due tiers are visited already, and removed ones no longer are
+        if ((tick - 1) % entry.periods != 0 && entries.get(entry.registryName) == entry) {
+          if (merged == null) {
+            merged = (due == null) ? new ArrayList<Entry>() : new ArrayList<Entry>(due);
+          }
+          merged.add(entry);
+        }
+      }
+      if (merged != null) {
+        Collections.sort(merged, BY_NAME);
+        return merged;
+      }
+      return (due == null) ? Collections.<Entry>emptyList() : due;
+    }
+  }
+
+  class Entry {
+    private final String registryName;
+    private final String prefixedName;
+    private Metric metric;
+    private final TaggedName[] expansionNames = new TaggedName[Expansion.values().length];
+    private TaggedName name;
+    // Change detection state, indexed by 0 for the metric itself and 1 + ordinal for expansions
+    private double[] lastValues;
+    private long[] lastReported;
+    private long lastCount;
+    private long lastSnapshot;
+    // Datadog count state
+    private long countedTotal;
+    private boolean countSeeded;
+    private long countedAt;
+    // Set when the entry is indexed, or else when it is first reported
+    private int periods;
+    private int band;
+    private boolean scheduled;
+    private boolean deferred;
+    // The index of the entry, which tracks its deferral, null if not indexed
+    private Index index;
+    private boolean reduced;
+    // Gauge evaluation state
+    private Future<Object> evaluation;
+    private Number lastValue;
+    private int failures;
+    private long quarantinedUntil;
+    // Cardinality guard state: the sketches of the tags, and the mask of the folded tags
+    private CardinalityGuard.Sketch[] sketches;
+    private long observedCount;
+    private int foldMask;
+    // Mask of the tags dropped by a rollup rule
+    private int dropMask;
+    // Precision of the first precision rule matching the metric, if any
+    private Precision precision;
+    private int foldedMask;
+    private TaggedName[] foldedNames;
+    // Tag sets of the series, indexed like the change detection state, built for additionalTags
+    private TagSet[] tagSets;
+    private List<String> additionalTags;
+
+    private Entry(String registryName) {
+      this.registryName = registryName;
+      this.prefixedName = prefix(registryName);
+    }
+
+    String getRegistryName() {
+      return registryName;
+    }
+
+    /**
+     * @return the metric registered under the name of the entry, or last reported under it
+     */
+    Metric getMetric() {
+      return metric;
+    }
+
+    /**
+     * @return the formatted and decoded name of the metric itself
+     */
+    TaggedName getName() {
+      if (name == null) {
+        name = TaggedName.decode(metricNameFormatter.format(prefixedName));
+      }
+      return name;
+    }
+
+    /**
+     * @return the formatted and decoded name of the given expansion of the metric
+     */
+    TaggedName getName(Expansion expansion) {
+      TaggedName expansionName = expansionNames[expansion.ordinal()];
+      if (expansionName == null) {
+        expansionName = TaggedName.decode(metricNameFormatter.format(prefixedName,
+            expansion.toString()));
+        expansionNames[expansion.ordinal()] = expansionName;
+      }
+      return expansionName;
+    }
+
+    /**
+     * @param expansion      The expansion of the series, or null for the metric itself
+     * @param additionalTags The tags added to every series of a report
+     * @return the tags of the series, reused for as long as the same additional tags are given
+     */
+    TagSet getTags(Expansion expansion, List<String> additionalTags) {
+      if (tagSets == null || additionalTags != this.additionalTags) {
+        tagSets = new TagSet[expansionNames.length + 1];
+        this.additionalTags = additionalTags;
+      }
+      int slot = (expansion == null) ? 0 : expansion.ordinal() + 1;
+      TagSet tagSet = tagSets[slot];
+      if (tagSet == null) {
+        List<String> encodedTags = (expansion == null)
+            ? getName().getEncodedTags() : getName(expansion).getEncodedTags();
+        if (slot > 0 && encodedTags.equals(getName().getEncodedTags())) {
+          // Expansions usually share the tags of the metric, so share its tag set too
+          tagSet = getTags(null, additionalTags);
+        } else {
+          tagSet = TagSet.of(encodedTags, additionalTags);
+        }
+        tagSets[slot] = tagSet;
+      }
+      return tagSet;
+    }
+
+    CardinalityGuard.Sketch[] getSketches() {
+      return sketches;
+    }
+
+    void setSketches(CardinalityGuard.Sketch[] sketches) {
+      this.sketches = sketches;
+    }
+
+    /**
+     * Record the count of the metric observed by the cardinality guard.
+     *
+     * @return the increase of the count since it was last observed
+     */
+    long observedCount(long count) {
+      final long delta = count - observedCount;
+      observedCount = count;
+      return delta;
+    }
+
+    /**
+     * @return a mask of the tags folded into {@code other} by the current report, 0 if none
+     */
+    int getFoldMask() {
+      return foldMask;
+    }
+
+    void setFoldMask(int foldMask) {
+      this.foldMask = foldMask;
+    }
+
+    /**
+     * @return a mask of the tags dropped by a rollup rule, 0 if none
+     */
+    int getDropMask() {
+      return dropMask;
+    }
+
+    void setDropMask(int dropMask) {
+      this.dropMask = dropMask;
+      this.foldedNames = null;
+    }
+
+    /**
+     * @return the precision of the values of the metric and its expansions, or null
+     */
+    Precision getPrecision() {
+      return precision;
+    }
+
+    void setPrecision(Precision precision) {
+      this.precision = precision;
+    }
+
+    /**
+     * @return true if the series of the metric are merged with the series of other metrics by
+     * the current report, rather than reported as they are
+     */
+    boolean isAggregated() {
+      return foldMask != 0 || dropMask != 0;
+    }
+
+    /**
+     * @return the name of the metric or of the given expansion, with the tags of the fold mask
+     * folded into {@code other} and the tags of the drop mask dropped
+     */
+    TaggedName getFoldedName(Expansion expansion) {
+      if (foldedNames == null || foldedMask != foldMask) {
+        foldedNames = new TaggedName[expansionNames.length + 1];
+        foldedMask = foldMask;
+      }
+      int slot = (expansion == null) ? 0 : expansion.ordinal() + 1;
+      if (foldedNames[slot] == null) {
+        foldedNames[slot] = CardinalityGuard.fold(
+            (expansion == null) ? getName() : getName(expansion),
+            getName().getEncodedTags(), foldMask, dropMask);
+      }
+      return foldedNames[slot];
+    }
+
+    boolean isScheduled() {
+      return scheduled;
+    }
+
+    /**
+     * Record how often and in which priority band the metric is reported.
+     */
+    void schedule(int periods, int band) {
+      this.periods = periods;
+      this.band = band;
+      this.scheduled = true;
+    }
+
+    /**
+     * @return the number of reporting periods between two reports of the metric
+     */
+    int getPeriods() {
+      return periods;
+    }
+
+    /**
+     * @return the priority band of the metric, 0 being reported first
+     */
+    int getBand() {
+      return band;
+    }
+
+    /**
+     * @return true if the metric was skipped by the last report for lack of time
+     */
+    boolean isDeferred() {
+      return deferred;
+    }
+
+    void setDeferred(boolean deferred) {
+      if (deferred != this.deferred && index != null) {
+        if (deferred) {
+          index.deferred.add(this);
+        } else {
+          index.deferred.remove(this);
+        }
+      }
+      this.deferred = deferred;
+    }
+
+    /**
+     * @return true if the metric is reported without snapshot statistics in the current report
+     */
+    boolean isReduced() {
+      return reduced;
+    }
+
+    void setReduced(boolean reduced) {
+      this.reduced = reduced;
+    }
+
+    /**
+     * @return the evaluation of the gauge last started, or null
+     */
+    Future<Object> getEvaluation() {
+      return evaluation;
+    }
+
+    void setEvaluation(Future<Object> evaluation) {
+      this.evaluation = evaluation;
+    }
+
+    /**
+     * @return the last numeric value of the gauge, or null
+     */
+    Number getLastValue() {
+      return lastValue;
+    }
+
+    /**
+     * Record a numeric value of the gauge, ending any run of failures.
+     */
+    void evaluated(Number value) {
+      lastValue = value;
+      failures = 0;
+    }
+
+    /**
+     * Record an evaluation of a primitive gauge, ending any run of failures. The value is not
+     * kept, as primitive gauges are read on the reporting thread and never time out.
+     */
+    void evaluated() {
+      failures = 0;
+    }
+
+    /**
+     * Record a failed evaluation of the gauge.
+     *
+     * @return the number of consecutive failures
+     */
+    int failed() {
+      return ++failures;
+    }
+
+    /**
+     * Skip the gauge until the given report, then evaluate it again. A single failure after
+     * that quarantines it again.
+     */
+    void quarantine(long untilReport) {
+      quarantinedUntil = untilReport;
+      failures--;
+    }
+
+    boolean isQuarantined(long report) {
+      return report < quarantinedUntil;
+    }
+
+    /**
+     * Record the value of a series that is about to be reported. Reports are numbered from 1.
+     *
+     * @param expansion The expansion of the series, or null for the metric itself
+     * @return false if the value did not change and was reported less than heartbeat reports ago
+     */
+    boolean update(Expansion expansion, double value, long report, int heartbeat) {
+      if (lastValues == null) {
+        lastValues = new double[expansionNames.length + 1];
+        lastReported = new long[expansionNames.length + 1];
+      }
+      int slot = (expansion == null) ? 0 : expansion.ordinal() + 1;
+      if (lastReported[slot] != 0 && report - lastReported[slot] < heartbeat
+          && Double.compare(lastValues[slot], value) == 0) {
+        return false;
+      }
+      lastValues[slot] = value;
+      lastReported[slot] = report;
+      return true;
+    }
+
+    /**
+     * Record the count of the metric when it is added, as the baseline of its first delta.
+     */
+    void seedCount(long count) {
+      if (!countSeeded) {
+        countedTotal = count;
+        countSeeded = true;
+      }
+    }
+
+    /**
+     * Record the count of a metric reported as a Datadog count.
+     *
+     * @return the increase of the count since it was last recorded or seeded, 0 the first time
+     * if it was not seeded, so that a restarted reporter does not send the whole count at once
+     */
+    long delta(long count) {
+      seedCount(count);
+      final long delta = count - countedTotal;
+      countedTotal = count;
+      return delta;
+    }
+
+    /**
+     * Record that the metric is reported as a Datadog count at the given timestamp.
+     *
+     * @return the seconds since it was last counted, or 0 the first time
+     */
+    long counted(long timestamp) {
+      final long interval = (countedAt == 0) ? 0 : timestamp - countedAt;
+      countedAt = timestamp;
+      return interval;
+    }
+
+    /**
+     * Record the count of a sampling metric that is about to be snapshotted.
+     *
+     * @return false if the count did not change and the last snapshot was taken less than
+     * heartbeat reports ago
+     */
+    boolean updateCount(long count, long report, int heartbeat) {
+      if (lastSnapshot != 0 && report - lastSnapshot < heartbeat && count == lastCount) {
+        return false;
+      }
+      lastCount = count;
+      lastSnapshot = report;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reporter;
+import com.viafoura.metrics.datadog.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports many registries to Datadog on one scheduler thread, adding the series of all of them
+ * to one request per reporting period, so that e.g. one registry per tenant does not cost a
+ * reporter thread and a request per tenant.
+ * <p/>
+ * Each registry is configured by its own {@link DatadogReporter.Builder}, with its own tags,
+ * prefix, filter, expansions and so on, while the transport is shared. The reporters of the
+ * registries are not scheduled on their own: they share the scheduler thread of this reporter,
+ * one thread refreshing their cached dynamic tags, and one pool for their concurrent gauges.
+ * Registries are reported whole every period: shards are not used, and the time budget of a
+ * registry only defers its lower priority metrics to the next period.
+ */
+public class MultiRegistryReporter implements Reporter, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MultiRegistryReporter.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+  private final Transport transport;
+  private final List<DatadogReporter> reporters;
+  private final ScheduledExecutorService executor;
+  // Refreshes the cached dynamic tags of all registries, null if none are cached
+  private final ScheduledExecutorService tagsExecutor;
+  // Evaluates the concurrent gauges of all registries, null if none are
+  private final ExecutorService gaugeExecutor;
+  private ScheduledFuture<?> reports;
+
+  private MultiRegistryReporter(Transport transport,
+                                List<DatadogReporter> reporters,
+                                ScheduledExecutorService executor,
+                                ScheduledExecutorService tagsExecutor,
+                                ExecutorService gaugeExecutor) {
+    this.transport = transport;
+    this.reporters = reporters;
+    this.executor = executor;
+    this.tagsExecutor = tagsExecutor;
+    this.gaugeExecutor = gaugeExecutor;
+  }
+
+  public static Builder forTransport(Transport transport) {
+    return new Builder(transport);
+  }
+
+  /**
+   * @return the reporters of the registries, in the order they were added
+   */
+  public List<DatadogReporter> getReporters() {
+    return reporters;
+  }
+
+  /**
+   * Report all registries every period, starting after one period.
+   */
+  public void start(long period, TimeUnit unit) {
+    start(period, period, unit);
+  }
+
+  /**
+   * Report all registries every period, starting after the initial delay. The cached dynamic
+   * tags of the registries are fetched first.
+   */
+  public synchronized void start(long initialDelay, long period, TimeUnit unit) {
+    if (reports != null) {
+      throw new IllegalArgumentException("Reporter already started");
+    }
+    for (DatadogReporter reporter : reporters) {
+      reporter.startTagsCallback();
+    }
+    reports = executor.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        report();
+      }
+    }, initialDelay, period, unit);
+  }
+
+  /**
+   * Report all registries in one request.
+   */
+  public synchronized void report() {
+    try {
+      final Transport.Request request = transport.prepare();
+      for (DatadogReporter reporter : reporters) {
+        try {
+          reporter.reportTo(request);
+        } catch (Exception e) {
+          LOG.error("Error reporting a registry to Datadog, continuing with other registries", e);
+        }
+      }
+      request.send();
+    } catch (Throwable e) {
+      LOG.error("Error reporting metrics to Datadog", e);
+    }
+  }
+
+  /**
+   * Stop reporting, waiting briefly for a report in progress, and stop the reporters of the
+   * registries, which releases their listeners, tags and transport resources.
+   */
+  public void stop() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      for (DatadogReporter reporter : reporters) {
+        reporter.stop();
+      }
+      if (tagsExecutor != null) {
+        tagsExecutor.shutdown();
+      }
+      if (gaugeExecutor != null) {
+        gaugeExecutor.shutdownNow();
+      }
+    }
+  }
+
+  public void close() {
+    stop();
+  }
+
+  public static class Builder {
+    private final Transport transport;
+    private final List<DatadogReporter.Builder> builders = new ArrayList<DatadogReporter.Builder>();
+    private MetricRegistry selfRegistry;
+
+    private Builder(Transport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * Add a registry, configured by the given builder of a reporter. The transport of the
+     * builder is replaced by the shared one.
+     */
+    public Builder withRegistry(DatadogReporter.Builder builder) {
+      builders.add(builder);
+      return this;
+    }
+
+    /**
+     * Record the self metrics of the reporter of each registry in the given registry, named
+     * apart in the order the registries were added: the metrics of the first one are named
+     * after {@code DatadogReporter}, those of the second one after {@code DatadogReporter.2} and
+     * so on. To also report them to Datadog, add the given registry as a registry of its own.
+     *
+     * @see DatadogReporter.Builder#withSelfMetrics(MetricRegistry, boolean)
+     */
+    public Builder withSelfMetrics(MetricRegistry selfRegistry) {
+      this.selfRegistry = selfRegistry;
+      return this;
+    }
+
+    public MultiRegistryReporter build() {
+      if (transport == null) {
+        throw new IllegalArgumentException("Transport for datadog reporter is null. " +
+            "Please set a valid transport");
+      }
+      boolean cachesTags = false;
+      boolean needsGaugeExecutor = false;
+      for (DatadogReporter.Builder builder : builders) {
+        cachesTags |= builder.cachesTags();
+        needsGaugeExecutor |= builder.needsGaugeExecutor();
+      }
+      final ScheduledExecutorService executor = newExecutor("datadog-multi-reporter-");
+      final ScheduledExecutorService tagsExecutor =
+          cachesTags ? newExecutor("datadog-multi-tags-") : null;
+      final ExecutorService gaugeExecutor =
+          needsGaugeExecutor ? GaugeEvaluator.newExecutor(4) : null;
+      final List<DatadogReporter> reporters = new ArrayList<DatadogReporter>(builders.size());
+      try {
+        for (DatadogReporter.Builder builder : builders) {
+          if (selfRegistry != null) {
+            builder.withSelfMetrics(selfRegistry, false);
+          }
+          reporters.add(builder.withTransport(transport)
+              .build(executor, tagsExecutor, gaugeExecutor));
+        }
+      } catch (RuntimeException e) {
+        // Releases the registries and self metrics of the reporters built so far
+        new MultiRegistryReporter(transport, reporters, executor, tagsExecutor, gaugeExecutor)
+            .stop();
+        throw e;
+      }
+      return new MultiRegistryReporter(transport, Collections.unmodifiableList(reporters),
+          executor, tagsExecutor, gaugeExecutor);
+    }
+
+    private static ScheduledExecutorService newExecutor(final String threadName) {
+      return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, threadName + THREAD_ID.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.viafoura.metrics.datadog;
+
+/**
+ * How the non-integral values of series are rounded before they are sent, either to a number of
+ * significant digits or to a number of decimals, so that e.g. a latency percentile is sent as
+ * {@code 12.3} rather than {@code 12.345678901234567}. Integral values are sent as they are.
+ *
+ * @see DatadogReporter.Builder#withPrecision(DatadogReporter.Expansion, Precision)
+ */
+public final class Precision {
+
+  private static final double MAX_EXACT_INTEGER = 1L << 53;
+  // Powers of ten exactly representable as doubles
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final int digits;
+  private final boolean significant;
+
+  private Precision(int digits, boolean significant) {
+    this.digits = digits;
+    this.significant = significant;
+  }
+
+  /**
+   * Round values to the given number of significant digits, from 1 to 17.
+   */
+  public static Precision significantDigits(int digits) {
+    if (digits < 1 || digits > 17) {
+      throw new IllegalArgumentException("Significant digits must be from 1 to 17, got " + digits);
+    }
+    return new Precision(digits, true);
+  }
+
+  /**
+   * Round values to the given number of decimals, from 0 to 15.
+   */
+  public static Precision decimals(int decimals) {
+    if (decimals < 0 || decimals > 15) {
+      throw new IllegalArgumentException("Decimals must be from 0 to 15, got " + decimals);
+    }
+    return new Precision(decimals, false);
+  }
+
+  /**
+   * Parse a precision written as {@code <n> digits} or {@code <n> decimals}, e.g. in
+   * configuration files.
+   */
+  public static Precision valueOf(String precision) {
+    final String[] parts = precision.trim().split("\\s+");
+    if (parts.length == 2) {
+      try {
+        final int n = Integer.parseInt(parts[0]);
+        if (parts[1].equals("digits") || parts[1].equals("digit")) {
+          return significantDigits(n);
+        }
+        if (parts[1].equals("decimals") || parts[1].equals("decimal")) {
+          return decimals(n);
+        }
+      } catch (NumberFormatException e) {
+        // Reported below
+      }
+    }
+    throw new IllegalArgumentException("Invalid precision '" + precision
+        + "', expected e.g. '3 digits' or '2 decimals'");
+  }
+
+  /**
+   * @return the value rounded to this precision, the value itself if it is integral, not finite
+   * or too large to be rounded exactly. Significant digits never round the integral part of a
+   * value, e.g. 1234.5 is rounded to 1235 with 3 significant digits.
+   */
+  public double round(double value) {
+    if (value == Math.rint(value) || Double.isNaN(value) || Double.isInfinite(value)) {
+      return value;
+    }
+    int decimals = digits;
+    if (significant) {
+      // The integral part is kept whole, as integral values are
+      decimals = Math.max(0, digits - 1 - (int) Math.floor(Math.log10(Math.abs(value))));
+    }
+    if (decimals >= POWERS_OF_TEN.length) {
+      return value;
+    }
+    final double scaled = value * POWERS_OF_TEN[decimals];
+    return (Math.abs(scaled) < MAX_EXACT_INTEGER) ? Math.round(scaled) / POWERS_OF_TEN[decimals]
+        : value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Precision)) {
+      return false;
+    }
+    final Precision that = (Precision) o;
+    return digits == that.digits && significant == that.significant;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * digits + (significant ? 1 : 0);
+  }
+
+  @Override
+  public String toString() {
+    return digits + (significant ? " digits" : " decimals");
+  }
+}
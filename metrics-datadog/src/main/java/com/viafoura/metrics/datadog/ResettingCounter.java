@@ -0,0 +1,48 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter which {@link DatadogReporter DatadogReporter} resets when reporting it as a Datadog
+ * count, so that the reporter does not have to remember its previous count. Its count is the
+ * number of events since it was last reported, so it should only be reported by one reporter.
+ *
+ * @see DatadogReporter.Builder#withNativeCounts()
+ */
+public class ResettingCounter extends Counter {
+  private final LongAdder count = new LongAdder();
+
+  @Override
+  public void inc() {
+    count.increment();
+  }
+
+  @Override
+  public void inc(long n) {
+    count.add(n);
+  }
+
+  @Override
+  public void dec() {
+    count.decrement();
+  }
+
+  @Override
+  public void dec(long n) {
+    count.add(-n);
+  }
+
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the count, then reset it to 0
+   */
+  public long getCountAndReset() {
+    return count.sumThenReset();
+  }
+}
@@ -0,0 +1,103 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The metrics of one reporter or transport about itself, registered under a name of their own so
+ * that several instances can share a registry, e.g. the application registry in Dropwizard.
+ * <p/>
+ * The first instance of a class in a registry names its metrics after the class, e.g.
+ * {@code com.viafoura.metrics.datadog.DatadogReporter.send}, the next ones after the class and
+ * their rank, e.g. {@code com.viafoura.metrics.datadog.DatadogReporter.2.send}. Names are
+ * released by {@link #remove()}, so that an instance rebuilt after being stopped takes the same
+ * names again.
+ */
+public final class SelfMetrics {
+
+  // Names claimed in each registry
+  private static final Map<MetricRegistry, Set<String>> CLAIMED =
+      new WeakHashMap<MetricRegistry, Set<String>>();
+
+  private final MetricRegistry registry;
+  private final String name;
+  private final List<String> registered = new ArrayList<String>();
+
+  private SelfMetrics(MetricRegistry registry, String name) {
+    this.registry = registry;
+    this.name = name;
+  }
+
+  /**
+   * Claim the first name of the given class free in the given registry.
+   */
+  public static SelfMetrics claim(MetricRegistry registry, Class<?> klass) {
+    synchronized (CLAIMED) {
+      Set<String> claimed = CLAIMED.get(registry);
+      if (claimed == null) {
+        claimed = new HashSet<String>();
+        CLAIMED.put(registry, claimed);
+      }
+      String name = klass.getName();
+      for (int rank = 2; claimed.contains(name); rank++) {
+        name = MetricRegistry.name(klass, String.valueOf(rank));
+      }
+      claimed.add(name);
+      return new SelfMetrics(registry, name);
+    }
+  }
+
+  /**
+   * @return the name the metrics are registered under
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Register a metric under the claimed name, to be removed by {@link #remove()}.
+   */
+  public <T extends Metric> T register(String metric, T value) {
+    final String full = MetricRegistry.name(name, metric);
+    registry.register(full, value);
+    synchronized (registered) {
+      registered.add(full);
+    }
+    return value;
+  }
+
+  public Counter counter(String metric) {
+    return register(metric, new Counter());
+  }
+
+  public Timer timer(String metric) {
+    return register(metric, new Timer());
+  }
+
+  /**
+   * Remove the metrics from the registry, and release their name.
+   */
+  public void remove() {
+    synchronized (registered) {
+      for (String metric : registered) {
+        registry.remove(metric);
+      }
+      registered.clear();
+    }
+    synchronized (CLAIMED) {
+      final Set<String> claimed = CLAIMED.get(registry);
+      if (claimed != null) {
+        claimed.remove(name);
+      }
+    }
+  }
+}
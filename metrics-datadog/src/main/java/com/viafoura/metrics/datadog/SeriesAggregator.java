@@ -0,0 +1,71 @@
+package com.viafoura.metrics.datadog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the series of a report that are not reported as they are, because their tags were
+ * rolled up or folded into {@code other}, into one series per resulting name.
+ */
+class SeriesAggregator {
+
+  /**
+   * How the values of series merged into one series are combined.
+   */
+  enum Merge {
+    SUM, MAX, MIN
+  }
+
+  // Merged series of the current report, by name
+  private final Map<TaggedName, Series> series = new LinkedHashMap<TaggedName, Series>();
+
+  /**
+   * Merge the value of a series into the series of the given name.
+   *
+   * @param count True if the value is a Datadog count, false for a gauge
+   */
+  synchronized void add(TaggedName name, double value, boolean integral, boolean count,
+                        Merge merge) {
+    Series merged = series.get(name);
+    if (merged == null) {
+      merged = new Series(name, count, value);
+      series.put(name, merged);
+    } else if (merge == Merge.SUM) {
+      merged.value += value;
+    } else if (merge == Merge.MAX) {
+      merged.value = Math.max(merged.value, value);
+    } else {
+      merged.value = Math.min(merged.value, value);
+    }
+    merged.integral &= integral;
+  }
+
+  /**
+   * End a report.
+   *
+   * @return the series merged by the report
+   */
+  synchronized List<Series> drain() {
+    final List<Series> merged = new ArrayList<Series>(series.values());
+    series.clear();
+    return merged;
+  }
+
+  /**
+   * A series merged from the series of a report.
+   */
+  static final class Series {
+    final TaggedName name;
+    final boolean count;
+    double value;
+    boolean integral = true;
+
+    private Series(TaggedName name, boolean count, double value) {
+      this.name = name;
+      this.count = count;
+      this.value = value;
+    }
+  }
+}
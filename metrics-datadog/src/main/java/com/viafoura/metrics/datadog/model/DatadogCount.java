@@ -0,0 +1,44 @@
+package com.viafoura.metrics.datadog.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.viafoura.metrics.datadog.TaggedName;
+
+import java.util.List;
+
+/**
+ * A Datadog count: the increase of a count over an interval, as opposed to a
+ * {@link DatadogCounter} which holds the total count and is turned into an increase by the
+ * transport. Counts can be summed across hosts and turned into rates by Datadog.
+ */
+public class DatadogCount extends DatadogCounter {
+  private final Long interval;
+
+  /**
+   * @param interval The length of the interval in seconds, or null if unknown
+   */
+  public DatadogCount(String name, Long count, Long epoch, Long interval, String host, List<String> additionalTags) {
+    super(name, count, epoch, host, additionalTags);
+    this.interval = interval;
+  }
+
+  public DatadogCount(TaggedName name, Long count, Long epoch, Long interval, String host, List<String> additionalTags) {
+    super(name, count, epoch, host, additionalTags);
+    this.interval = interval;
+  }
+
+  public DatadogCount(TaggedName name, Long count, Long epoch, Long interval, String host, TagSet tags) {
+    super(name, count, epoch, host, tags);
+    this.interval = interval;
+  }
+
+  @Override
+  public String getType() {
+    return "count";
+  }
+
+  @JsonInclude(Include.NON_NULL)
+  public Long getInterval() {
+    return interval;
+  }
+}
@@ -1,5 +1,7 @@
 package com.viafoura.metrics.datadog.model;
 
+import com.viafoura.metrics.datadog.TaggedName;
+
 import java.util.List;
 
 public class DatadogCounter extends DatadogSeries<Long> {
@@ -8,6 +10,14 @@ public class DatadogCounter extends DatadogSeries<Long> {
     super(name, count, epoch, host, additionalTags);
   }
 
+  public DatadogCounter(TaggedName name, Long count, Long epoch, String host, List<String> additionalTags) {
+    super(name, count, epoch, host, additionalTags);
+  }
+
+  public DatadogCounter(TaggedName name, Long count, Long epoch, String host, TagSet tags) {
+    super(name, count, epoch, host, tags);
+  }
+
   public String getType() {
     return "counter";
   }
@@ -3,11 +3,14 @@ package com.viafoura.metrics.datadog.model;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
 import com.viafoura.metrics.datadog.TaggedName;
 
+@JsonPropertyOrder({"metric", "points", "type", "host", "tags"})
 public abstract class DatadogSeries<T extends Number> {
   abstract protected String getType();
 
@@ -16,11 +19,23 @@ public abstract class DatadogSeries<T extends Number> {
   private Long epoch;
   private String host;
   private List<String> tags;
+  // The tag set the series was built from, or else built from its tags the first time it is needed
+  private TagSet tagSet;
 
   public DatadogSeries(String name, T count, Long epoch, String host, List<String> additionalTags) {
-    TaggedName taggedName = TaggedName.decode(name);
-    this.name = taggedName.getMetricName();
-    this.tags = taggedName.getEncodedTags();
+    this(TaggedName.decode(name), count, epoch, host, additionalTags);
+  }
+
+  /**
+   * Build a series from an already decoded name. The tags of the given name are copied, so the
+   * same {@link TaggedName} can be shared between series.
+   */
+  public DatadogSeries(TaggedName name, T count, Long epoch, String host, List<String> additionalTags) {
+    List<String> encodedTags = name.getEncodedTags();
+    this.name = name.getMetricName();
+    this.tags = new ArrayList<String>(encodedTags.size()
+        + (additionalTags == null ? 0 : additionalTags.size()));
+    this.tags.addAll(encodedTags);
 
     if (additionalTags != null) {
       this.tags.addAll(additionalTags);
@@ -30,6 +45,20 @@ public abstract class DatadogSeries<T extends Number> {
     this.host = host;
   }
 
+  /**
+   * Build a series sharing an already built tag set, without copying it.
+   *
+   * @param tags All the tags of the series, including the tags of the name
+   */
+  public DatadogSeries(TaggedName name, T count, Long epoch, String host, TagSet tags) {
+    this.name = name.getMetricName();
+    this.tags = tags.asList();
+    this.tagSet = tags;
+    this.count = count;
+    this.epoch = epoch;
+    this.host = host;
+  }
+
   @JsonInclude(Include.NON_NULL)
   public String getHost() {
     return host;
@@ -43,6 +72,17 @@ public abstract class DatadogSeries<T extends Number> {
     return tags;
   }
 
+  /**
+   * @return the tags of the series as a tag set, interned at most once per series
+   */
+  @JsonIgnore
+  public TagSet getTagSet() {
+    if (tagSet == null) {
+      tagSet = TagSet.of(tags);
+    }
+    return tagSet;
+  }
+
   public List<List<Number>> getPoints() {
     List<Number> point = new ArrayList<Number>();
     point.add(epoch);
@@ -0,0 +1,136 @@
+package com.viafoura.metrics.datadog.model;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.BufferRecyclers;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable, ordered set of encoded tags. Tag sets are built once per series and reused
+ * across reports, so that adding a series to a request does not copy its tags.
+ * <p/>
+ * Tag sets are interned: series with the same tags share one instance, and its JSON encoding.
+ */
+public final class TagSet {
+
+  public static final TagSet EMPTY = new TagSet(new String[0]);
+
+  // Weak, so that the tag sets of removed metrics or of past dynamic tags can be collected
+  private static final Map<TagSet, WeakReference<TagSet>> INTERNED =
+      new WeakHashMap<TagSet, WeakReference<TagSet>>();
+
+  private final String[] tags;
+  private final int hash;
+  private List<String> list;
+  private SerializableString json;
+
+  private TagSet(String[] tags) {
+    this.tags = tags;
+    this.hash = Arrays.hashCode(tags);
+  }
+
+  /**
+   * @return the tags of the first list followed by the tags of the second one, either of which
+   * may be null
+   */
+  public static TagSet of(List<String> first, List<String> second) {
+    int firstSize = (first == null) ? 0 : first.size();
+    int secondSize = (second == null) ? 0 : second.size();
+    if (firstSize + secondSize == 0) {
+      return EMPTY;
+    }
+    String[] tags = new String[firstSize + secondSize];
+    for (int i = 0; i < firstSize; i++) {
+      tags[i] = first.get(i);
+    }
+    for (int i = 0; i < secondSize; i++) {
+      tags[firstSize + i] = second.get(i);
+    }
+    return intern(new TagSet(tags));
+  }
+
+  public static TagSet of(List<String> tags) {
+    return of(tags, null);
+  }
+
+  private static TagSet intern(TagSet tagSet) {
+    synchronized (INTERNED) {
+      final WeakReference<TagSet> reference = INTERNED.get(tagSet);
+      final TagSet interned = (reference == null) ? null : reference.get();
+      if (interned != null) {
+        return interned;
+      }
+      INTERNED.put(tagSet, new WeakReference<TagSet>(tagSet));
+      return tagSet;
+    }
+  }
+
+  public int size() {
+    return tags.length;
+  }
+
+  public String get(int index) {
+    return tags[index];
+  }
+
+  /**
+   * @return the tags as an array, shared by all callers, which must not modify it
+   */
+  public String[] toArray() {
+    return tags;
+  }
+
+  /**
+   * @return an unmodifiable view of the tags
+   */
+  public List<String> asList() {
+    if (list == null) {
+      list = Collections.unmodifiableList(Arrays.asList(tags));
+    }
+    return list;
+  }
+
+  /**
+   * @return the tags as a JSON array, encoded once and shared by all callers
+   */
+  public SerializableString toJson() {
+    if (json == null) {
+      final JsonStringEncoder encoder = BufferRecyclers.getJsonStringEncoder();
+      final StringBuilder sb = new StringBuilder(16 * tags.length + 2).append('[');
+      for (int i = 0; i < tags.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append('"').append(encoder.quoteAsString(tags[i])).append('"');
+      }
+      json = new SerializedString(sb.append(']').toString());
+    }
+    return json;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof TagSet)) return false;
+
+    TagSet that = (TagSet) o;
+    return hash == that.hash && Arrays.equals(tags, that.tags);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(tags);
+  }
+}
@@ -0,0 +1,292 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.viafoura.metrics.datadog.SelfMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decouples collecting metrics from sending them. Requests prepared by this transport only
+ * buffer their series; {@code send()} hands the buffered request to a bounded queue that is
+ * drained by dedicated sender threads, which replay it through the wrapped transport.
+ * <p/>
+ * When the queue is full, either the oldest queued request is dropped or the reporting thread
+ * blocks until there is room, see {@link OverflowPolicy}.
+ * <p/>
+ * The queue depth, the number of dropped requests, send failures and send latency are exposed
+ * as metrics, registered in the given registry if there is one, under a name of their own, see
+ * {@link SelfMetrics}.
+ */
+public class AsyncTransport implements Transport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncTransport.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+  public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued request to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Block the reporting thread until there is room in the queue.
+     */
+    BLOCK
+  }
+
+  private final Transport transport;
+  private final ThreadPoolExecutor senders;
+  private final long shutdownTimeoutMs;
+  private final SelfMetrics selfMetrics;
+  private final Counter dropped;
+  private final Counter failures;
+  private final Timer sendLatency;
+
+  private AsyncTransport(Transport transport,
+                         int queueSize,
+                         int senderThreads,
+                         OverflowPolicy overflowPolicy,
+                         long shutdownTimeoutMs,
+                         MetricRegistry registry) {
+    this.transport = transport;
+    this.shutdownTimeoutMs = shutdownTimeoutMs;
+    this.senders = new ThreadPoolExecutor(
+        senderThreads,
+        senderThreads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "datadog-sender-" + THREAD_ID.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        overflowPolicy == OverflowPolicy.BLOCK ? new BlockPolicy() : new DropOldestPolicy());
+
+    if (registry != null) {
+      // Named apart from the other transports registered in the same registry
+      this.selfMetrics = SelfMetrics.claim(registry, AsyncTransport.class);
+      selfMetrics.register("queue-depth", new Gauge<Integer>() {
+        public Integer getValue() {
+          return senders.getQueue().size();
+        }
+      });
+      this.dropped = selfMetrics.counter("dropped");
+      this.failures = selfMetrics.counter("failures");
+      this.sendLatency = selfMetrics.timer("send-latency");
+    } else {
+      this.selfMetrics = null;
+      this.dropped = new Counter();
+      this.failures = new Counter();
+      this.sendLatency = new Timer();
+    }
+  }
+
+  public static class Builder {
+    final Transport transport;
+    int queueSize = 16;
+    int senderThreads = 1;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    long shutdownTimeoutMs = 5000;
+    MetricRegistry registry;
+
+    /**
+     * @param transport The transport that sends the requests
+     */
+    public Builder(Transport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * The maximum number of requests waiting to be sent.
+     */
+    public Builder withQueueSize(int queueSize) {
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    /**
+     * The number of threads sending requests. Transports dropping timestamps, such as
+     * {@link UdpTransport}, take a single thread, so that points and counter deltas are sent in
+     * the order they were reported.
+     */
+    public Builder withSenderThreads(int senderThreads) {
+      this.senderThreads = senderThreads;
+      return this;
+    }
+
+    public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /**
+     * How long {@link AsyncTransport#close()} waits for queued requests to be sent.
+     */
+    public Builder withShutdownTimeout(int milliseconds) {
+      this.shutdownTimeoutMs = milliseconds;
+      return this;
+    }
+
+    /**
+     * Register the queue depth, dropped requests, send failures and send latency in the
+     * given registry, named after {@code AsyncTransport}, or after {@code AsyncTransport.2} and
+     * so on if other transports registered theirs there already. They are removed on shutdown.
+     */
+    public Builder withMetricRegistry(MetricRegistry registry) {
+      this.registry = registry;
+      return this;
+    }
+
+    public AsyncTransport build() {
+      if (transport == null) {
+        throw new IllegalArgumentException("Transport to send requests with is null");
+      }
+      if (queueSize < 1 || senderThreads < 1) {
+        throw new IllegalArgumentException("Queue size and sender threads must be at least 1");
+      }
+      if (senderThreads > 1 && transport.dropsTimestamps()) {
+        throw new IllegalArgumentException("Transports dropping timestamps take a single sender " +
+            "thread, so that requests are sent in order");
+      }
+      return new AsyncTransport(transport, queueSize, senderThreads, overflowPolicy,
+          shutdownTimeoutMs, registry);
+    }
+  }
+
+  public Request prepare() throws IOException {
+    return new AsyncRequest(this);
+  }
+
+  /**
+   * Stops accepting requests, waits for the queued ones to be sent and closes the wrapped
+   * transport.
+   */
+  public void close() throws IOException {
+    try {
+      shutdown();
+    } finally {
+      transport.close();
+    }
+  }
+
+  /**
+   * Stops accepting requests and waits for the queued ones to be sent, up to the shutdown
+   * timeout, leaving the wrapped transport open. Removes the metrics of the transport.
+   */
+  public void shutdown() {
+    senders.shutdown();
+    try {
+      if (!senders.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Dropping " + senders.shutdownNow().size() + " requests not sent to Datadog on close");
+      }
+    } catch (InterruptedException e) {
+      senders.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      if (selfMetrics != null) {
+        selfMetrics.remove();
+      }
+    }
+  }
+
+  public long getDropped() {
+    return dropped.getCount();
+  }
+
+  public int getQueueDepth() {
+    return senders.getQueue().size();
+  }
+
+  /**
+   * @return true if the queue is at least half full, or the wrapped transport is backpressured
+   */
+  @Override
+  public boolean isBackpressured() {
+    final int depth = senders.getQueue().size();
+    return (depth > 0 && depth >= senders.getQueue().remainingCapacity())
+        || transport.isBackpressured();
+  }
+
+  /**
+   * @return true if the wrapped transport drops timestamps
+   */
+  @Override
+  public boolean dropsTimestamps() {
+    return transport.dropsTimestamps();
+  }
+
+  private void send(BufferedRequest buffered) {
+    final Timer.Context context = sendLatency.time();
+    try {
+      Request request = transport.prepare();
+      buffered.replay(request);
+      request.send();
+    } catch (Throwable e) {
+      failures.inc();
+      LOG.error("Error sending metrics to Datadog", e);
+    } finally {
+      context.stop();
+    }
+  }
+
+  public static class AsyncRequest extends BufferedRequest {
+    private final AsyncTransport transport;
+
+    AsyncRequest(AsyncTransport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * Queues the request to be sent by the sender threads.
+     */
+    @Override
+    public void send() {
+      transport.senders.execute(new Runnable() {
+        public void run() {
+          transport.send(AsyncRequest.this);
+        }
+      });
+    }
+  }
+
+  private class DropOldestPolicy implements RejectedExecutionHandler {
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Transport is closed");
+      }
+      if (executor.getQueue().poll() != null) {
+        dropped.inc();
+        LOG.warn("Send queue is full, dropped the oldest request to Datadog");
+      }
+      executor.execute(runnable);
+    }
+  }
+
+  private class BlockPolicy implements RejectedExecutionHandler {
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Transport is closed");
+      }
+      try {
+        executor.getQueue().put(runnable);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting for room in the send queue", e);
+      }
+    }
+  }
+}
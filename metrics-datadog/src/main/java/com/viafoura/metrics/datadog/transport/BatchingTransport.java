@@ -0,0 +1,317 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.viafoura.metrics.datadog.model.DatadogCount;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.DatadogSeries;
+import com.viafoura.metrics.datadog.model.TagSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the series of several reports and sends them together in one request of the wrapped
+ * transport, so that reports can be collected at a fine interval without a request per report.
+ * <p/>
+ * Points of the same series, i.e. of the same metric, type, host, tags and count interval, are
+ * sent as one series of several points when the wrapped request implements
+ * {@link Transport.MultiPointRequest}, as HTTP requests do, so that the name, host and tags of
+ * the series are serialized once per batch rather than once per report. Other requests get the
+ * points one by one.
+ * <p/>
+ * Transports that drop timestamps, such as DogStatsD over UDP, are rejected: the points of a
+ * batch would reach the agent in one burst, and it would keep only the last value of a gauge.
+ * <p/>
+ * Sending a request of this transport only counts a report; every {@code batchSize}th send, and
+ * on close, the series collected so far are sent on the calling thread.
+ */
+public class BatchingTransport implements Transport {
+
+  private static final String[] TYPES = {"gauge", "gauge", "counter", "count"};
+  private static final byte DOUBLE_GAUGE = 0;
+  private static final byte LONG_GAUGE = 1;
+  private static final byte COUNTER = 2;
+  private static final byte COUNT = 3;
+
+  private final Transport transport;
+  private final int batchSize;
+  private Map<Key, Points> points = new LinkedHashMap<Key, Points>();
+  private List<DatadogSeries> series = new ArrayList<DatadogSeries>();
+  private int reports;
+
+  private BatchingTransport(Transport transport, int batchSize) {
+    this.transport = transport;
+    this.batchSize = batchSize;
+  }
+
+  public Request prepare() {
+    return new BatchingRequest(this);
+  }
+
+  /**
+   * @return true if the wrapped transport is backpressured
+   */
+  @Override
+  public boolean isBackpressured() {
+    return transport.isBackpressured();
+  }
+
+  /**
+   * Sends the series collected so far and closes the wrapped transport.
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Error sending the last batch to Datadog", e);
+    } finally {
+      transport.close();
+    }
+  }
+
+  /**
+   * @return the number of reports collected and not sent yet
+   */
+  public synchronized int getPendingReports() {
+    return reports;
+  }
+
+  private synchronized void add(CharSequence metric, long value, long epoch, long interval,
+                                String host, TagSet tags, byte kind) {
+    final Key key = new Key(metric.toString(), kind, interval, host, tags);
+    Points batched = points.get(key);
+    if (batched == null) {
+      batched = new Points(batchSize);
+      points.put(key, batched);
+    }
+    batched.add(epoch, value);
+  }
+
+  private synchronized void add(DatadogSeries s) {
+    series.add(s);
+  }
+
+  private void endReport() throws Exception {
+    final boolean full;
+    synchronized (this) {
+      full = ++reports >= batchSize;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  private void flush() throws Exception {
+    final Map<Key, Points> batchedPoints;
+    final List<DatadogSeries> batchedSeries;
+    synchronized (this) {
+      if (points.isEmpty() && series.isEmpty()) {
+        reports = 0;
+        return;
+      }
+      batchedPoints = points;
+      batchedSeries = series;
+      points = new LinkedHashMap<Key, Points>();
+      series = new ArrayList<DatadogSeries>();
+      reports = 0;
+    }
+    final Request request = transport.prepare();
+    for (DatadogSeries s : batchedSeries) {
+      if (s instanceof DatadogCounter) {
+        request.addCounter((DatadogCounter) s);
+      } else {
+        request.addGauge((DatadogGauge) s);
+      }
+    }
+    for (Map.Entry<Key, Points> entry : batchedPoints.entrySet()) {
+      final Key key = entry.getKey();
+      final Points batched = entry.getValue();
+      if (request instanceof MultiPointRequest) {
+        ((MultiPointRequest) request).addSeries(TYPES[key.kind], key.metric, batched.epochs,
+            batched.values, key.kind == DOUBLE_GAUGE, batched.size, key.interval, key.host,
+            key.tags);
+      } else {
+        for (int i = 0; i < batched.size; i++) {
+          addPoint(request, key, batched.epochs[i], batched.values[i]);
+        }
+      }
+    }
+    request.send();
+  }
+
+  private static void addPoint(Request request, Key key, long epoch, long value)
+      throws IOException {
+    if (request instanceof PrimitiveRequest) {
+      final PrimitiveRequest primitive = (PrimitiveRequest) request;
+      switch (key.kind) {
+        case COUNTER:
+          primitive.addCounter(key.metric, value, epoch, key.host, key.tags);
+          break;
+        case COUNT:
+          primitive.addCount(key.metric, value, epoch, key.interval, key.host, key.tags);
+          break;
+        case LONG_GAUGE:
+          primitive.addGauge(key.metric, value, epoch, key.host, key.tags);
+          break;
+        default:
+          primitive.addGauge(key.metric, Double.longBitsToDouble(value), epoch, key.host, key.tags);
+      }
+    } else if (key.kind == COUNT) {
+      request.addCounter(new DatadogCount(key.metric, value, epoch,
+          (key.interval == 0) ? null : (Long) key.interval, key.host, key.tags.asList()));
+    } else if (key.kind == COUNTER) {
+      request.addCounter(new DatadogCounter(key.metric, value, epoch, key.host, key.tags.asList()));
+    } else {
+      final Number number = (key.kind == LONG_GAUGE)
+          ? (Number) value : (Number) Double.longBitsToDouble(value);
+      request.addGauge(new DatadogGauge(key.metric, number, epoch, key.host, key.tags.asList()));
+    }
+  }
+
+  public static class Builder {
+    final Transport transport;
+    int batchSize = 6;
+
+    /**
+     * @param transport The transport that sends the batches
+     */
+    public Builder(Transport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * The number of reports sent together, 6 by default.
+     */
+    public Builder withBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public BatchingTransport build() {
+      if (transport == null) {
+        throw new IllegalArgumentException("Transport to send batches with is null");
+      }
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+      }
+      if (transport.dropsTimestamps()) {
+        throw new IllegalArgumentException("Cannot batch points for a transport that drops their "
+            + "timestamps, such as UDP: all but the last value of a gauge would be lost");
+      }
+      return new BatchingTransport(transport, batchSize);
+    }
+  }
+
+  public static class BatchingRequest implements Transport.PrimitiveRequest {
+    private final BatchingTransport transport;
+
+    BatchingRequest(BatchingTransport transport) {
+      this.transport = transport;
+    }
+
+    public void addGauge(DatadogGauge gauge) {
+      transport.add(gauge);
+    }
+
+    public void addCounter(DatadogCounter counter) {
+      transport.add(counter);
+    }
+
+    public void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags) {
+      transport.add(metric, Double.doubleToRawLongBits(value), epoch, 0, host, tags, DOUBLE_GAUGE);
+    }
+
+    public void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      transport.add(metric, value, epoch, 0, host, tags, LONG_GAUGE);
+    }
+
+    public void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      transport.add(metric, value, epoch, 0, host, tags, COUNTER);
+    }
+
+    public void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                         TagSet tags) {
+      transport.add(metric, value, epoch, interval, host, tags, COUNT);
+    }
+
+    /**
+     * Ends a report, sending the batch if it is full.
+     */
+    public void send() throws Exception {
+      transport.endReport();
+    }
+  }
+
+  /**
+   * The identity of a series, whose points are sent together.
+   */
+  private static final class Key {
+    final String metric;
+    final byte kind;
+    final long interval;
+    final String host;
+    final TagSet tags;
+    private final int hash;
+
+    Key(String metric, byte kind, long interval, String host, TagSet tags) {
+      this.metric = metric;
+      this.kind = kind;
+      this.interval = interval;
+      this.host = host;
+      this.tags = tags;
+      this.hash = 31 * (31 * metric.hashCode() + tags.hashCode()) + kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return hash == that.hash
+          && kind == that.kind
+          && interval == that.interval
+          && metric.equals(that.metric)
+          && tags.equals(that.tags)
+          && (host == null ? that.host == null : host.equals(that.host));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * The points of a series, as parallel arrays of timestamps and values.
+   */
+  private static final class Points {
+    long[] epochs;
+    long[] values;
+    int size;
+
+    Points(int capacity) {
+      epochs = new long[capacity];
+      values = new long[capacity];
+    }
+
+    void add(long epoch, long value) {
+      if (size == epochs.length) {
+        epochs = Arrays.copyOf(epochs, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      epochs[size] = epoch;
+      values[size] = value;
+      size++;
+    }
+  }
+}
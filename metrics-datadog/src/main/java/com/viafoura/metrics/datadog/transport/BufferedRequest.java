@@ -0,0 +1,143 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.viafoura.metrics.datadog.model.DatadogCount;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.DatadogSeries;
+import com.viafoura.metrics.datadog.model.TagSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A request that only records the series added to it, so that they can be computed away from
+ * the thread sending them and later replayed, in order, into a real transport request.
+ * <p/>
+ * Series added as primitives are kept in parallel arrays rather than as series objects, and are
+ * only turned into series objects when replayed into a request that does not accept primitives.
+ */
+public class BufferedRequest implements Transport.PrimitiveRequest {
+
+  private static final byte DOUBLE_GAUGE = 0;
+  private static final byte LONG_GAUGE = 1;
+  private static final byte COUNTER = 2;
+  private static final byte COUNT = 3;
+
+  private DatadogSeries[] series = new DatadogSeries[16];
+  private CharSequence[] metrics = new CharSequence[16];
+  // Raw bits of double gauge values, plain long gauge, counter and count values
+  private long[] values = new long[16];
+  private long[] epochs = new long[16];
+  private long[] intervals = new long[16];
+  private String[] hosts = new String[16];
+  private TagSet[] tags = new TagSet[16];
+  private byte[] kinds = new byte[16];
+  private int size;
+
+  public void addGauge(DatadogGauge gauge) {
+    add(gauge);
+  }
+
+  public void addCounter(DatadogCounter counter) {
+    add(counter);
+  }
+
+  public void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags) {
+    add(metric, Double.doubleToRawLongBits(value), epoch, 0, host, tags, DOUBLE_GAUGE);
+  }
+
+  public void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+    add(metric, value, epoch, 0, host, tags, LONG_GAUGE);
+  }
+
+  public void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+    add(metric, value, epoch, 0, host, tags, COUNTER);
+  }
+
+  public void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                       TagSet tags) {
+    add(metric, value, epoch, interval, host, tags, COUNT);
+  }
+
+  /**
+   * Nothing is sent by a buffered request, see {@link #replay(Transport.Request)}.
+   */
+  public void send() {
+  }
+
+  /**
+   * Add all buffered series to the given request, in the order they were buffered.
+   */
+  public void replay(Transport.Request request) throws IOException {
+    final Transport.PrimitiveRequest primitive = (request instanceof Transport.PrimitiveRequest)
+        ? (Transport.PrimitiveRequest) request : null;
+    for (int i = 0; i < size; i++) {
+      if (series[i] instanceof DatadogCounter) {
+        request.addCounter((DatadogCounter) series[i]);
+      } else if (series[i] != null) {
+        request.addGauge((DatadogGauge) series[i]);
+      } else if (primitive != null) {
+        replay(primitive, i);
+      } else if (kinds[i] == COUNT) {
+        request.addCounter(new DatadogCount(metrics[i].toString(), values[i], epochs[i],
+            (intervals[i] == 0) ? null : (Long) intervals[i], hosts[i], tags[i].asList()));
+      } else if (kinds[i] == COUNTER) {
+        request.addCounter(new DatadogCounter(metrics[i].toString(), values[i], epochs[i], hosts[i],
+            tags[i].asList()));
+      } else {
+        final Number value = (kinds[i] == LONG_GAUGE)
+            ? (Number) values[i] : (Number) Double.longBitsToDouble(values[i]);
+        request.addGauge(new DatadogGauge(metrics[i].toString(), value, epochs[i], hosts[i],
+            tags[i].asList()));
+      }
+    }
+  }
+
+  private void replay(Transport.PrimitiveRequest request, int i) throws IOException {
+    switch (kinds[i]) {
+      case COUNTER:
+        request.addCounter(metrics[i], values[i], epochs[i], hosts[i], tags[i]);
+        break;
+      case COUNT:
+        request.addCount(metrics[i], values[i], epochs[i], intervals[i], hosts[i], tags[i]);
+        break;
+      case LONG_GAUGE:
+        request.addGauge(metrics[i], values[i], epochs[i], hosts[i], tags[i]);
+        break;
+      default:
+        request.addGauge(metrics[i], Double.longBitsToDouble(values[i]), epochs[i], hosts[i], tags[i]);
+    }
+  }
+
+  private void add(DatadogSeries s) {
+    ensureCapacity();
+    series[size++] = s;
+  }
+
+  private void add(CharSequence metric, long value, long epoch, long interval, String host,
+                   TagSet tagSet, byte kind) {
+    ensureCapacity();
+    metrics[size] = metric;
+    values[size] = value;
+    epochs[size] = epoch;
+    intervals[size] = interval;
+    hosts[size] = host;
+    tags[size] = tagSet;
+    kinds[size] = kind;
+    size++;
+  }
+
+  private void ensureCapacity() {
+    if (size == series.length) {
+      int capacity = size * 2;
+      series = Arrays.copyOf(series, capacity);
+      metrics = Arrays.copyOf(metrics, capacity);
+      values = Arrays.copyOf(values, capacity);
+      epochs = Arrays.copyOf(epochs, capacity);
+      intervals = Arrays.copyOf(intervals, capacity);
+      hosts = Arrays.copyOf(hosts, capacity);
+      tags = Arrays.copyOf(tags, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+    }
+  }
+}
@@ -3,18 +3,25 @@ package com.viafoura.metrics.datadog.transport;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DeflaterInputStream;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.fluent.Executor;
-import org.apache.http.client.fluent.Response;
 import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
+import com.viafoura.metrics.datadog.FlightRecorderEvents;
 import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
 import com.viafoura.metrics.serializer.JsonSerializer;
 import com.viafoura.metrics.serializer.Serializer;
 import org.slf4j.Logger;
@@ -39,6 +46,14 @@ public class HttpTransport implements Transport {
   private final HttpHost proxy;
   private final Executor executor;
   private final boolean useCompression;
+  private final Histogram series;
+  private final Histogram bytes;
+  private final Histogram compressedBytes;
+  private final Histogram compressionRatio;
+  private final Timer serialization;
+  private final Counter failures;
+  // Whether the last send failed or was throttled by Datadog
+  private volatile boolean lastSendFailed;
 
   private HttpTransport(String apiKey,
                         int connectTimeout,
@@ -46,7 +61,8 @@ public class HttpTransport implements Transport {
                         HttpHost proxy,
                         Executor executor,
                         boolean useCompression,
-                        boolean euSite) {
+                        boolean euSite,
+                        MetricRegistry registry) {
     final String baseUrl = euSite ? BASE_URL_EU: BASE_URL_US;
     this.seriesUrl = String.format("%s/series?api_key=%s", baseUrl, apiKey);
     this.connectTimeout = connectTimeout;
@@ -58,6 +74,21 @@ public class HttpTransport implements Transport {
     } else {
       this.executor = Executor.newInstance();
     }
+    if (registry != null) {
+      this.series = registry.histogram(MetricRegistry.name(HttpTransport.class, "series"));
+      this.bytes = registry.histogram(MetricRegistry.name(HttpTransport.class, "bytes"));
+      this.compressedBytes = registry.histogram(MetricRegistry.name(HttpTransport.class, "compressed-bytes"));
+      this.compressionRatio = registry.histogram(MetricRegistry.name(HttpTransport.class, "compression-ratio"));
+      this.serialization = registry.timer(MetricRegistry.name(HttpTransport.class, "serialization"));
+      this.failures = registry.counter(MetricRegistry.name(HttpTransport.class, "failures"));
+    } else {
+      this.series = new Histogram(new ExponentiallyDecayingReservoir());
+      this.bytes = new Histogram(new ExponentiallyDecayingReservoir());
+      this.compressedBytes = new Histogram(new ExponentiallyDecayingReservoir());
+      this.compressionRatio = new Histogram(new ExponentiallyDecayingReservoir());
+      this.serialization = new Timer();
+      this.failures = new Counter();
+    }
   }
 
   public static class Builder {
@@ -68,6 +99,7 @@ public class HttpTransport implements Transport {
     Executor executor;
     boolean useCompression = false;
     boolean euSite = false;
+    MetricRegistry registry;
 
     public Builder withApiKey(String key) {
       this.apiKey = key;
@@ -107,8 +139,19 @@ public class HttpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Register the number of series and UTF-8 encoded bytes of requests, their compressed bytes
+     * and compression ratio (times 100) when compressed, the time spent building them and send
+     * failures in the given registry. A request is built from its first series to its encoded
+     * body, which includes the time the reporter spends collecting series between them.
+     */
+    public Builder withMetricRegistry(MetricRegistry registry) {
+      this.registry = registry;
+      return this;
+    }
+
     public HttpTransport build() {
-      return new HttpTransport(apiKey, connectTimeout, socketTimeout, proxy, executor, useCompression, euSite);
+      return new HttpTransport(apiKey, connectTimeout, socketTimeout, proxy, executor, useCompression, euSite, registry);
     }
   }
 
@@ -119,11 +162,23 @@ public class HttpTransport implements Transport {
   public void close() throws IOException {
   }
 
-  public static class HttpRequest implements Transport.Request {
+  /**
+   * @return true if the last request could not be sent, or was throttled or failed by Datadog
+   */
+  @Override
+  public boolean isBackpressured() {
+    return lastSendFailed;
+  }
+
+  public static class HttpRequest implements Transport.MultiPointRequest {
     protected final Serializer serializer;
 
     protected final HttpTransport transport;
 
+    private int series;
+    // When the first series was added, timing the whole build of the request at once
+    private long firstSeriesNanos;
+
     public HttpRequest(HttpTransport transport) throws IOException {
       this.transport = transport;
       serializer = new JsonSerializer();
@@ -131,22 +186,62 @@ public class HttpTransport implements Transport {
     }
 
     public void addGauge(DatadogGauge gauge) throws IOException {
+      added();
       serializer.appendGauge(gauge);
     }
 
     public void addCounter(DatadogCounter counter) throws IOException {
+      added();
       serializer.appendCounter(counter);
     }
 
+    public void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags)
+        throws IOException {
+      added();
+      serializer.appendGauge(metric, value, epoch, host, tags);
+    }
+
+    public void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags)
+        throws IOException {
+      added();
+      serializer.appendGauge(metric, value, epoch, host, tags);
+    }
+
+    public void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags)
+        throws IOException {
+      added();
+      serializer.appendCounter(metric, value, epoch, host, tags);
+    }
+
+    public void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                         TagSet tags) throws IOException {
+      added();
+      serializer.appendCount(metric, value, epoch, interval, host, tags);
+    }
+
+    public void addSeries(String type, CharSequence metric, long[] epochs, long[] values,
+                          boolean doubles, int size, long interval, String host, TagSet tags)
+        throws IOException {
+      added();
+      serializer.appendSeries(type, metric, epochs, values, doubles, size, interval, host, tags);
+    }
+
     public void send() throws Exception {
+      final Object sending = FlightRecorderEvents.beginSend();
+      final long encoding = System.nanoTime();
       serializer.endObject();
-      String postBody = serializer.getAsString();
+      final String postBody = serializer.getAsString();
+      final byte[] body = postBody.getBytes(StandardCharsets.UTF_8);
+      this.transport.serialization.update(
+          System.nanoTime() - ((series == 0) ? encoding : firstSeriesNanos), TimeUnit.NANOSECONDS);
+      this.transport.series.update(series);
+      this.transport.bytes.update(body.length);
       if (LOG.isDebugEnabled()) {
         StringBuilder sb = new StringBuilder();
         sb.append("Sending HTTP POST request to ");
         sb.append(this.transport.seriesUrl);
         sb.append(", uncompressed POST body length is: ");
-        sb.append(postBody.length());
+        sb.append(body.length);
         LOG.debug(sb.toString());
 
         StringBuilder bodyMsgBuilder = new StringBuilder();
@@ -162,61 +257,72 @@ public class HttpTransport implements Transport {
       if (this.transport.useCompression) {
         request
           .addHeader("Content-Encoding", "deflate")
-          .addHeader("Content-MD5", DigestUtils.md5Hex(postBody))
-          .bodyStream(deflated(postBody), ContentType.APPLICATION_JSON);
+          .addHeader("Content-MD5", DigestUtils.md5Hex(body))
+          .bodyStream(deflated(body), ContentType.APPLICATION_JSON);
       } else {
-        request.bodyString(postBody, ContentType.APPLICATION_JSON);
+        request.bodyByteArray(body, ContentType.APPLICATION_JSON);
       }
 
       if (this.transport.proxy != null) {
         request.viaProxy(this.transport.proxy);
       }
 
-      Response response = this.transport.executor.execute(request);
+      final HttpResponse response;
+      try {
+        response = this.transport.executor.execute(request).returnResponse();
+      } catch (IOException e) {
+        this.transport.failures.inc();
+        this.transport.lastSendFailed = true;
+        FlightRecorderEvents.endSend(sending, "http", series, body.length,
+            e.getClass().getSimpleName());
+        throw e;
+      }
 
       final long elapsed = System.currentTimeMillis() - start;
+      final int statusCode = response.getStatusLine().getStatusCode();
+      this.transport.lastSendFailed = statusCode == 429 || statusCode >= 500;
+      FlightRecorderEvents.endSend(sending, "http", series, body.length,
+          String.valueOf(statusCode));
+
+      if (statusCode >= 400) {
+        this.transport.failures.inc();
+        if (LOG.isWarnEnabled()) {
+          LOG.warn(getLogMessage("Failure sending metrics to Datadog: ", response, elapsed));
+        }
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug(getLogMessage("Sent metrics to Datadog: ", response, elapsed));
+      }
+    }
 
-      if (LOG.isWarnEnabled()) {
-        response.handleResponse(new ResponseHandler<Void>() {
-          public Void handleResponse(HttpResponse response) throws IOException {
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode >= 400) {
-              LOG.warn(getLogMessage("Failure sending metrics to Datadog: ", response));
-            } else {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug(getLogMessage("Sent metrics to Datadog: ", response));
-              }
-            }
-            return null;
-          }
-
-          private String getLogMessage(String headline, HttpResponse response) throws IOException {
-            StringBuilder sb = new StringBuilder();
+    private void added() {
+      if (series++ == 0) {
+        firstSeriesNanos = System.nanoTime();
+      }
+    }
 
-            sb.append(headline);
-            sb.append("\n");
-            sb.append("  Timing: ").append(elapsed).append(" ms\n");
-            sb.append("  Status: ").append(response.getStatusLine().getStatusCode()).append("\n");
+    private static String getLogMessage(String headline, HttpResponse response, long elapsed)
+        throws IOException {
+      StringBuilder sb = new StringBuilder();
 
-            String content = EntityUtils.toString(response.getEntity(), "UTF-8");
-            sb.append("  Content: ").append(content);
-            return sb.toString();
-          }
+      sb.append(headline);
+      sb.append("\n");
+      sb.append("  Timing: ").append(elapsed).append(" ms\n");
+      sb.append("  Status: ").append(response.getStatusLine().getStatusCode()).append("\n");
 
-        });
-      } else {
-        response.discardContent();
-      }
+      String content = EntityUtils.toString(response.getEntity(), "UTF-8");
+      sb.append("  Content: ").append(content);
+      return sb.toString();
     }
 
-    private static InputStream deflated(String str) throws IOException {
-      if (str == null || str.length() == 0) {
-        return new ByteArrayInputStream(new byte[0]);
-      }
-      ByteArrayInputStream inputStream = new ByteArrayInputStream(str.getBytes("UTF-8"));
+    private InputStream deflated(byte[] body) {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
       return new DeflaterInputStream(inputStream) {
         @Override
         public void close() throws IOException {
+          if (this.def.getBytesWritten() > 0) {
+            transport.compressedBytes.update(this.def.getBytesWritten());
+            transport.compressionRatio.update(100 * this.def.getBytesRead() / this.def.getBytesWritten());
+          }
           if (LOG.isDebugEnabled()) {
             final StringBuilder sb = new StringBuilder();
             long bytesWritten = this.def.getBytesWritten();
@@ -0,0 +1,250 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.DatadogSeries;
+import com.viafoura.metrics.datadog.model.TagSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Dispatches each series of a report to one of several transports, e.g. latency histograms to
+ * DogStatsD over UDP, business metrics to HTTP, and the metrics of some tenants to HTTP with
+ * another API key, so that one reporter collects the registry once for all of them.
+ * <p/>
+ * A series goes to the transport of the first route it matches, by metric name or tags, or to
+ * the default transport if it matches none. Each transport gets its own request per report,
+ * only if some series were routed to it, and can be wrapped on its own, e.g. in an
+ * {@link AsyncTransport} or a {@link BatchingTransport}.
+ */
+public class RoutingTransport implements Transport {
+
+  /**
+   * Selects the series of a route.
+   */
+  public interface SeriesFilter {
+    /**
+     * @param metric The metric name, without tags
+     * @param tags   All tags of the series
+     */
+    boolean matches(CharSequence metric, TagSet tags);
+  }
+
+  private final SeriesFilter[] filters;
+  // Transports of the routes, indexed like the filters, then the default transport
+  private final Transport[] targets;
+
+  private RoutingTransport(List<SeriesFilter> filters, List<Transport> targets) {
+    this.filters = filters.toArray(new SeriesFilter[filters.size()]);
+    this.targets = targets.toArray(new Transport[targets.size()]);
+  }
+
+  public Request prepare() {
+    return new RoutingRequest(this);
+  }
+
+  /**
+   * @return true if any of the transports is backpressured
+   */
+  @Override
+  public boolean isBackpressured() {
+    for (Transport target : targets) {
+      if (target.isBackpressured()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if any of the transports drops timestamps
+   */
+  @Override
+  public boolean dropsTimestamps() {
+    for (Transport target : targets) {
+      if (target.dropsTimestamps()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Closes all transports, even if closing one of them fails.
+   */
+  public void close() throws IOException {
+    IOException failure = null;
+    for (Transport target : distinctTargets()) {
+      try {
+        target.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private Set<Transport> distinctTargets() {
+    final Set<Transport> distinct =
+        Collections.newSetFromMap(new IdentityHashMap<Transport, Boolean>());
+    Collections.addAll(distinct, targets);
+    return distinct;
+  }
+
+  /**
+   * @return the index of the transport of the series
+   */
+  private int route(CharSequence metric, TagSet tags) {
+    for (int i = 0; i < filters.length; i++) {
+      if (filters[i].matches(metric, tags)) {
+        return i;
+      }
+    }
+    return filters.length;
+  }
+
+  public static class Builder {
+    final Transport defaultTransport;
+    final List<SeriesFilter> filters = new ArrayList<SeriesFilter>();
+    final List<Transport> targets = new ArrayList<Transport>();
+
+    /**
+     * @param defaultTransport The transport of the series matching no route
+     */
+    public Builder(Transport defaultTransport) {
+      this.defaultTransport = defaultTransport;
+    }
+
+    /**
+     * Send the series matching the given filter to the given transport.
+     */
+    public Builder withRoute(SeriesFilter filter, Transport transport) {
+      this.filters.add(filter);
+      this.targets.add(transport);
+      return this;
+    }
+
+    /**
+     * Send the series whose metric name contains a match of the given pattern to the given
+     * transport.
+     */
+    public Builder withRoute(final Pattern namePattern, Transport transport) {
+      return withRoute(new SeriesFilter() {
+        public boolean matches(CharSequence metric, TagSet tags) {
+          return namePattern.matcher(metric).find();
+        }
+      }, transport);
+    }
+
+    /**
+     * Send the series with the given tag, e.g. {@code tenant:acme}, to the given transport.
+     */
+    public Builder withTagRoute(final String tag, Transport transport) {
+      return withRoute(new SeriesFilter() {
+        public boolean matches(CharSequence metric, TagSet tags) {
+          for (int i = 0; i < tags.size(); i++) {
+            if (tags.get(i).equals(tag)) {
+              return true;
+            }
+          }
+          return false;
+        }
+      }, transport);
+    }
+
+    public RoutingTransport build() {
+      if (defaultTransport == null || targets.contains(null)) {
+        throw new IllegalArgumentException("Transport to route series to is null");
+      }
+      final List<Transport> transports = new ArrayList<Transport>(targets);
+      transports.add(defaultTransport);
+      return new RoutingTransport(new ArrayList<SeriesFilter>(filters), transports);
+    }
+  }
+
+  /**
+   * Buffers the series of each transport, and sends them in one request per transport.
+   */
+  public static class RoutingRequest implements Transport.PrimitiveRequest {
+    private final RoutingTransport transport;
+    // Series of each transport, null if none were routed to it
+    private final BufferedRequest[] buffers;
+
+    RoutingRequest(RoutingTransport transport) {
+      this.transport = transport;
+      this.buffers = new BufferedRequest[transport.targets.length];
+    }
+
+    public void addGauge(DatadogGauge gauge) {
+      buffer(gauge).addGauge(gauge);
+    }
+
+    public void addCounter(DatadogCounter counter) {
+      buffer(counter).addCounter(counter);
+    }
+
+    public void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags) {
+      buffer(metric, tags).addGauge(metric, value, epoch, host, tags);
+    }
+
+    public void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      buffer(metric, tags).addGauge(metric, value, epoch, host, tags);
+    }
+
+    public void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      buffer(metric, tags).addCounter(metric, value, epoch, host, tags);
+    }
+
+    public void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                         TagSet tags) {
+      buffer(metric, tags).addCount(metric, value, epoch, interval, host, tags);
+    }
+
+    /**
+     * Sends a request to each transport some series were routed to. A failing transport does
+     * not keep the others from sending; the first failure is thrown once all have sent.
+     */
+    public void send() throws Exception {
+      Exception failure = null;
+      for (int i = 0; i < buffers.length; i++) {
+        if (buffers[i] == null) {
+          continue;
+        }
+        try {
+          final Request request = transport.targets[i].prepare();
+          buffers[i].replay(request);
+          request.send();
+        } catch (Exception e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    private BufferedRequest buffer(DatadogSeries<?> series) {
+      return buffer(series.getMetric(), series.getTagSet());
+    }
+
+    private BufferedRequest buffer(CharSequence metric, TagSet tags) {
+      final int target = transport.route(metric, tags);
+      if (buffers[target] == null) {
+        buffers[target] = new BufferedRequest();
+      }
+      return buffers[target];
+    }
+  }
+}
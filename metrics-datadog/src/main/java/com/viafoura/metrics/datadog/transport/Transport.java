@@ -2,6 +2,7 @@ package com.viafoura.metrics.datadog.transport;
 
 import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -17,7 +18,24 @@ public interface Transport extends Closeable {
   public Request prepare() throws IOException;
 
   /**
-   * A request for batching of metrics to be pushed to datadog.
+   * @return true if the transport is falling behind, e.g. its last send failed or its queue of
+   * pending requests is filling up, so that reporters should report less often
+   */
+  default boolean isBackpressured() {
+    return false;
+  }
+
+  /**
+   * @return true if the transport sends points without their timestamps, e.g. DogStatsD over
+   * UDP, whose agent stamps points on arrival and keeps the last value of a gauge per flush
+   */
+  default boolean dropsTimestamps() {
+    return false;
+  }
+
+  /**
+   * A request for batching of metrics to be pushed to datadog. Counters given as
+   * {@link com.viafoura.metrics.datadog.model.DatadogCount} already hold an increase.
    * The call order is expected to be:
    *    one or more of addGauge, addCounter -> send()
    */
@@ -38,4 +56,63 @@ public interface Transport extends Closeable {
      */
     void send() throws Exception;
   }
+
+  /**
+   * A request that also accepts series as primitive values, so that adding a series does not
+   * allocate a {@link DatadogGauge} or {@link DatadogCounter}. Reporters use these methods
+   * when the request implements them.
+   */
+  public interface PrimitiveRequest extends Request {
+
+    /**
+     * Add a gauge
+     *
+     * @param metric The metric name, without tags
+     * @param epoch  The timestamp of the value, in seconds
+     * @param host   The host of the series, or null
+     * @param tags   All tags of the series
+     */
+    void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags)
+        throws IOException;
+
+    /**
+     * Add a gauge of integral values, see {@link #addGauge(CharSequence, double, long, String, TagSet)}
+     */
+    void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags)
+        throws IOException;
+
+    /**
+     * Add a counter, see {@link #addGauge(CharSequence, double, long, String, TagSet)}
+     */
+    void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags)
+        throws IOException;
+
+    /**
+     * Add a count, the increase of a count over an interval, see
+     * {@link com.viafoura.metrics.datadog.model.DatadogCount}
+     *
+     * @param interval The length of the interval in seconds, or 0 if unknown
+     */
+    void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                  TagSet tags) throws IOException;
+  }
+
+  /**
+   * A request that also accepts series of several points, so that the metric name, host and
+   * tags of a series are sent once for all of its points, see {@link BatchingTransport}.
+   */
+  public interface MultiPointRequest extends PrimitiveRequest {
+
+    /**
+     * Add a series of several points
+     *
+     * @param type     The Datadog type of the series: gauge, counter or count
+     * @param epochs   The timestamps of the points, in seconds
+     * @param values   The values of the points, as the raw long bits of doubles if {@code doubles}
+     * @param size     The number of points, at least 1
+     * @param interval The length of the interval of counts in seconds, or 0 if unknown
+     */
+    void addSeries(String type, CharSequence metric, long[] epochs, long[] values, boolean doubles,
+                   int size, long interval, String host, TagSet tags) throws IOException;
+  }
 }
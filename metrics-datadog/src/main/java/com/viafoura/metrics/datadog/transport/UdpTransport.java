@@ -1,10 +1,17 @@
 package com.viafoura.metrics.datadog.transport;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import com.timgroup.statsd.NonBlockingStatsDClient;
 import com.timgroup.statsd.StatsDClient;
 import com.timgroup.statsd.StatsDClientErrorHandler;
+import com.viafoura.metrics.datadog.FlightRecorderEvents;
+import com.viafoura.metrics.datadog.model.DatadogCount;
 import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,8 +35,17 @@ public class UdpTransport implements Transport {
   private static final Logger LOG = LoggerFactory.getLogger(UdpTransport.class);
   private final StatsDClient statsd;
   private final Map lastSeenCounters = new HashMap<String, Long>();
+  private final Histogram series;
+  private final Counter failures;
 
-  private UdpTransport(String prefix, String statsdHost, int port, boolean isRetryingLookup, String[] globalTags, int socketTimeoutMs, int socketBufferBytes, int maxPacketSizeBytes) {
+  private UdpTransport(String prefix, String statsdHost, int port, boolean isRetryingLookup, String[] globalTags, int socketTimeoutMs, int socketBufferBytes, int maxPacketSizeBytes, MetricRegistry registry) {
+    if (registry != null) {
+      series = registry.histogram(MetricRegistry.name(UdpTransport.class, "series"));
+      failures = registry.counter(MetricRegistry.name(UdpTransport.class, "failures"));
+    } else {
+      series = new Histogram(new ExponentiallyDecayingReservoir());
+      failures = new Counter();
+    }
     final Callable<SocketAddress> socketAddressCallable;
 
     if(isRetryingLookup) {
@@ -44,6 +60,7 @@ public class UdpTransport implements Transport {
             globalTags,
             new StatsDClientErrorHandler() {
               public void handle(Exception e) {
+                failures.inc();
                 LOG.error(e.getMessage(), e);
               }
             },
@@ -54,6 +71,14 @@ public class UdpTransport implements Transport {
     );
   }
 
+  /**
+   * @return true, DogStatsD stamping points on arrival
+   */
+  @Override
+  public boolean dropsTimestamps() {
+    return true;
+  }
+
   public void close() throws IOException {
     statsd.stop();
   }
@@ -66,6 +91,7 @@ public class UdpTransport implements Transport {
     int socketTimeoutMs = 100;
     int socketBufferBytes = -1;
     int maxPacketSizeBytes = 1400;
+    MetricRegistry registry;
 
     public Builder withPrefix(String prefix) {
       this.prefix = prefix;
@@ -102,28 +128,51 @@ public class UdpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Register the number of series of requests and send failures in the given registry.
+     */
+    public Builder withMetricRegistry(MetricRegistry registry) {
+      this.registry = registry;
+      return this;
+    }
+
     public UdpTransport build() {
-      return new UdpTransport(prefix, statsdHost, port, isLookupRetrying, new String[0], socketTimeoutMs, socketBufferBytes, maxPacketSizeBytes);
+      return new UdpTransport(prefix, statsdHost, port, isLookupRetrying, new String[0], socketTimeoutMs, socketBufferBytes, maxPacketSizeBytes, registry);
     }
   }
 
   public Request prepare() throws IOException {
-    return new DogstatsdRequest(statsd, lastSeenCounters);
+    return new DogstatsdRequest(statsd, lastSeenCounters, series);
   }
 
-  public static class DogstatsdRequest implements Transport.Request {
+  public static class DogstatsdRequest implements Transport.PrimitiveRequest {
     private final StatsDClient statsdClient;
     private final Map<String, Long> lastSeenCounters;
+    private final Histogram seriesHistogram;
+    // Series are pushed as they are added, so the flush event covers the whole request
+    private final Object sending = FlightRecorderEvents.beginSend();
+    private int series;
 
     public DogstatsdRequest(StatsDClient statsdClient, Map<String, Long> lastSeenCounters) {
+      this(statsdClient, lastSeenCounters, null);
+    }
+
+    /**
+     * @param seriesHistogram The histogram to record the number of series of the request in, or
+     *                        null
+     */
+    public DogstatsdRequest(StatsDClient statsdClient, Map<String, Long> lastSeenCounters,
+                            Histogram seriesHistogram) {
       this.statsdClient = statsdClient;
       this.lastSeenCounters = lastSeenCounters;
+      this.seriesHistogram = seriesHistogram;
     }
 
     /**
      * statsd has no notion of batch request, so gauges are pushed as they are received
      */
     public void addGauge(DatadogGauge gauge) {
+      series++;
       if (gauge.getPoints().size() > 1) {
         LOG.debug("Gauge " + gauge.getMetric() + " has more than one data point, " +
             "will pick the first point only");
@@ -137,12 +186,55 @@ public class UdpTransport implements Transport {
      * statsd has no notion of batch request, so counters are pushed as they are received
      */
     public void addCounter(DatadogCounter counter) {
+      series++;
       if (counter.getPoints().size() > 1) {
         LOG.debug("Counter " + counter.getMetric() + " has more than one data point, " +
             "will pick the first point only");
       }
       long value = counter.getPoints().get(0).get(1).longValue();
       String[] tags = counter.getTags().toArray(new String[counter.getTags().size()]);
+      if (counter instanceof DatadogCount) {
+        // Already an increase, as statsd expects
+        statsdClient.count(counter.getMetric(), value, tags);
+      } else {
+        count(counter.getMetric(), value, tags);
+      }
+    }
+
+    /**
+     * Timestamp and host are not part of the dogstatsd protocol, so they are ignored
+     */
+    public void addGauge(CharSequence metric, double value, long epoch, String host, TagSet tags) {
+      series++;
+      statsdClient.gauge(metric.toString(), value, tags.toArray());
+    }
+
+    /**
+     * Timestamp and host are not part of the dogstatsd protocol, so they are ignored
+     */
+    public void addGauge(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      series++;
+      statsdClient.gauge(metric.toString(), value, tags.toArray());
+    }
+
+    /**
+     * Timestamp and host are not part of the dogstatsd protocol, so they are ignored
+     */
+    public void addCounter(CharSequence metric, long value, long epoch, String host, TagSet tags) {
+      series++;
+      count(metric.toString(), value, tags.toArray());
+    }
+
+    /**
+     * Timestamp, interval and host are not part of the dogstatsd protocol, so they are ignored
+     */
+    public void addCount(CharSequence metric, long value, long epoch, long interval, String host,
+                         TagSet tags) {
+      series++;
+      statsdClient.count(metric.toString(), value, tags.toArray());
+    }
+
+    private void count(String metric, long value, String[] tags) {
       StringBuilder sb = new StringBuilder("");
       for (int i=tags.length - 1; i>=0; i--) {
         sb.append(tags[i]);
@@ -151,7 +243,6 @@ public class UdpTransport implements Transport {
         }
       }
 
-      String metric = counter.getMetric();
       String finalMetricsSeenName = metric + ":" + sb.toString();
       long finalValue = value;
       if (lastSeenCounters.containsKey(finalMetricsSeenName)) {
@@ -171,6 +262,10 @@ public class UdpTransport implements Transport {
      * For statsd the metrics are pushed as they are received. So there is nothing do in send.
      */
     public void send() {
+      FlightRecorderEvents.endSend(sending, "udp", series, -1, "sent");
+      if (seriesHistogram != null) {
+        seriesHistogram.update(series);
+      }
     }
   }
 
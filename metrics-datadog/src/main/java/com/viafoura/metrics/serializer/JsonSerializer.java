@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +21,7 @@ import java.io.UnsupportedEncodingException;
 public class JsonSerializer implements Serializer {
   private static final JsonFactory JSON_FACTORY = new JsonFactory();
   private static final ObjectMapper MAPPER = new ObjectMapper(JSON_FACTORY);
+  private static final double MAX_EXACT_INTEGER = 1L << 53;
   private static final Logger LOG = LoggerFactory.getLogger(JsonSerializer.class);
 
   private JsonGenerator jsonOut;
@@ -40,6 +42,90 @@ public class JsonSerializer implements Serializer {
     MAPPER.writeValue(jsonOut, counter);
   }
 
+  public void appendGauge(CharSequence metric, double value, long epoch, String host, TagSet tags)
+      throws IOException {
+    startSeries(metric, epoch);
+    writeDouble(value);
+    endSeries("gauge", host, tags, 0);
+  }
+
+  public void appendGauge(CharSequence metric, long value, long epoch, String host, TagSet tags)
+      throws IOException {
+    startSeries(metric, epoch);
+    jsonOut.writeNumber(value);
+    endSeries("gauge", host, tags, 0);
+  }
+
+  public void appendCounter(CharSequence metric, long value, long epoch, String host, TagSet tags)
+      throws IOException {
+    startSeries(metric, epoch);
+    jsonOut.writeNumber(value);
+    endSeries("counter", host, tags, 0);
+  }
+
+  public void appendCount(CharSequence metric, long value, long epoch, long interval, String host,
+                          TagSet tags) throws IOException {
+    startSeries(metric, epoch);
+    jsonOut.writeNumber(value);
+    endSeries("count", host, tags, interval);
+  }
+
+  public void appendSeries(String type, CharSequence metric, long[] epochs, long[] values,
+                           boolean doubles, int size, long interval, String host, TagSet tags)
+      throws IOException {
+    startSeries(metric, epochs[0]);
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        jsonOut.writeEndArray();
+        jsonOut.writeStartArray();
+        jsonOut.writeNumber(epochs[i]);
+      }
+      if (doubles) {
+        writeDouble(Double.longBitsToDouble(values[i]));
+      } else {
+        jsonOut.writeNumber(values[i]);
+      }
+    }
+    endSeries(type, host, tags, interval);
+  }
+
+  // Keep integral values integral, as they are when serialized from a boxed Long
+  private void writeDouble(double value) throws IOException {
+    if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_INTEGER) {
+      jsonOut.writeNumber((long) value);
+    } else {
+      jsonOut.writeNumber(value);
+    }
+  }
+
+  /**
+   * Write a series field by field, in the same layout as the bean serialization of
+   * {@link com.viafoura.metrics.datadog.model.DatadogSeries}, up to the value of its point.
+   */
+  private void startSeries(CharSequence metric, long epoch) throws IOException {
+    jsonOut.writeStartObject();
+    jsonOut.writeStringField("metric", metric.toString());
+    jsonOut.writeArrayFieldStart("points");
+    jsonOut.writeStartArray();
+    jsonOut.writeNumber(epoch);
+  }
+
+  private void endSeries(String type, String host, TagSet tags, long interval)
+      throws IOException {
+    jsonOut.writeEndArray();
+    jsonOut.writeEndArray();
+    jsonOut.writeStringField("type", type);
+    if (host != null) {
+      jsonOut.writeStringField("host", host);
+    }
+    jsonOut.writeFieldName("tags");
+    jsonOut.writeRawValue(tags.toJson());
+    if (interval > 0) {
+      jsonOut.writeNumberField("interval", interval);
+    }
+    jsonOut.writeEndObject();
+  }
+
   public void endObject() throws IOException {
     jsonOut.writeEndArray();
     jsonOut.writeEndObject();
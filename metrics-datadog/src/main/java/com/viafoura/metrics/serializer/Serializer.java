@@ -1,7 +1,9 @@
 package com.viafoura.metrics.serializer;
 
+import com.viafoura.metrics.datadog.model.DatadogCount;
 import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
 
 import java.io.IOException;
 
@@ -28,6 +30,73 @@ public interface Serializer {
    */
   public void appendCounter(DatadogCounter counter) throws IOException;
 
+  /**
+   * Append a gauge given as primitive values to the time series. Appends a
+   * {@link DatadogGauge} unless overridden.
+   */
+  public default void appendGauge(CharSequence metric, double value, long epoch, String host,
+                                  TagSet tags) throws IOException {
+    appendGauge(new DatadogGauge(metric.toString(), value, epoch, host, tags.asList()));
+  }
+
+  /**
+   * Append a gauge of integral values given as primitive values to the time series. Appends a
+   * {@link DatadogGauge} unless overridden.
+   */
+  public default void appendGauge(CharSequence metric, long value, long epoch, String host,
+                                  TagSet tags) throws IOException {
+    appendGauge(new DatadogGauge(metric.toString(), value, epoch, host, tags.asList()));
+  }
+
+  /**
+   * Append a counter given as primitive values to the time series. Appends a
+   * {@link DatadogCounter} unless overridden.
+   */
+  public default void appendCounter(CharSequence metric, long value, long epoch, String host,
+                                    TagSet tags) throws IOException {
+    appendCounter(new DatadogCounter(metric.toString(), value, epoch, host, tags.asList()));
+  }
+
+  /**
+   * Append a count given as primitive values to the time series
+   *
+   * Appends a {@link DatadogCount} unless overridden.
+   *
+   * @param interval The length of the interval of the count in seconds, or 0 if unknown
+   */
+  public default void appendCount(CharSequence metric, long value, long epoch, long interval,
+                                  String host, TagSet tags) throws IOException {
+    appendCounter(new DatadogCount(metric.toString(), value, epoch,
+        (interval == 0) ? null : (Long) interval, host, tags.asList()));
+  }
+
+  /**
+   * Append a series of several points given as primitive values to the time series, writing
+   * its metric name, host and tags once for all points. Appends one series per point unless
+   * overridden.
+   *
+   * @param type     The Datadog type of the series: gauge, counter or count
+   * @param epochs   The timestamps of the points, in seconds
+   * @param values   The values of the points, as the raw long bits of doubles if {@code doubles}
+   * @param size     The number of points
+   * @param interval The length of the interval of counts in seconds, or 0 if unknown
+   */
+  public default void appendSeries(String type, CharSequence metric, long[] epochs, long[] values,
+                                   boolean doubles, int size, long interval, String host,
+                                   TagSet tags) throws IOException {
+    for (int i = 0; i < size; i++) {
+      if (type.equals("count")) {
+        appendCount(metric, values[i], epochs[i], interval, host, tags);
+      } else if (type.equals("counter")) {
+        appendCounter(metric, values[i], epochs[i], host, tags);
+      } else if (doubles) {
+        appendGauge(metric, Double.longBitsToDouble(values[i]), epochs[i], host, tags);
+      } else {
+        appendGauge(metric, values[i], epochs[i], host, tags);
+      }
+    }
+  }
+
   /**
    * Mark ending of the datadog time series object
    */
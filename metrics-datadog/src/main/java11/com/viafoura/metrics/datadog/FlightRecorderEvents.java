@@ -0,0 +1,98 @@
+package com.viafoura.metrics.datadog;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the reporting phases and transport sends, to correlate
+ * latency spikes with metrics reporting.
+ * <p/>
+ * This is the Java 11 version, see the Java 8 version for the contract. Events are only
+ * allocated while a recording has them enabled.
+ */
+public final class FlightRecorderEvents {
+
+  private static final EventType PHASE = EventType.getEventType(PhaseEvent.class);
+  private static final EventType SEND = EventType.getEventType(SendEvent.class);
+
+  private FlightRecorderEvents() {
+  }
+
+  public static Object beginPhase() {
+    if (!PHASE.isEnabled()) {
+      return null;
+    }
+    final PhaseEvent event = new PhaseEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void endPhase(Object event, String phase, int shard) {
+    if (event != null) {
+      final PhaseEvent phaseEvent = (PhaseEvent) event;
+      phaseEvent.end();
+      if (phaseEvent.shouldCommit()) {
+        phaseEvent.phase = phase;
+        phaseEvent.shard = shard;
+        phaseEvent.commit();
+      }
+    }
+  }
+
+  public static Object beginSend() {
+    if (!SEND.isEnabled()) {
+      return null;
+    }
+    final SendEvent event = new SendEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void endSend(Object event, String transport, int series, long bytes,
+                             String outcome) {
+    if (event != null) {
+      final SendEvent sendEvent = (SendEvent) event;
+      sendEvent.end();
+      if (sendEvent.shouldCommit()) {
+        sendEvent.transport = transport;
+        sendEvent.series = series;
+        sendEvent.bytes = bytes;
+        sendEvent.outcome = outcome;
+        sendEvent.commit();
+      }
+    }
+  }
+
+  @Name("com.viafoura.metrics.datadog.ReportPhase")
+  @Label("Datadog Report Phase")
+  @Category({ "Datadog", "Reporter" })
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Shard")
+    int shard;
+  }
+
+  @Name("com.viafoura.metrics.datadog.TransportSend")
+  @Label("Datadog Transport Send")
+  @Category({ "Datadog", "Transport" })
+  static class SendEvent extends Event {
+    @Label("Transport")
+    String transport;
+
+    @Label("Series")
+    int series;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Outcome")
+    String outcome;
+  }
+}
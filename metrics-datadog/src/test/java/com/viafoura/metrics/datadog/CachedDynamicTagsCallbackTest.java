@@ -0,0 +1,99 @@
+package com.viafoura.metrics.datadog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachedDynamicTagsCallbackTest {
+  private final DynamicTagsCallback callback = mock(DynamicTagsCallback.class);
+  private final CachedDynamicTagsCallback.Listener listener =
+      mock(CachedDynamicTagsCallback.Listener.class);
+  private final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+  private final ScheduledFuture future = mock(ScheduledFuture.class);
+  private CachedDynamicTagsCallback cached;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    when(executor.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(),
+        eq(TimeUnit.NANOSECONDS))).thenReturn(future);
+    cached = CachedDynamicTagsCallback.forCallback(callback)
+        .withTtl(30, TimeUnit.SECONDS)
+        .withExecutor(executor)
+        .withListener(listener)
+        .build();
+  }
+
+  @Test
+  public void fetchesTheTagsOnStartThenRefreshesThem() {
+    when(callback.getTags()).thenReturn(Arrays.asList("az:us-east-1a"));
+    verify(executor, never()).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(),
+        any(TimeUnit.class));
+    assertEquals(Collections.<String>emptyList(), cached.getTags());
+
+    cached.start();
+    cached.start();
+    assertEquals(Arrays.asList("az:us-east-1a"), cached.getTags());
+    verify(callback).getTags();
+    verify(executor).scheduleWithFixedDelay(any(Runnable.class),
+        eq(TimeUnit.SECONDS.toNanos(30)), eq(TimeUnit.SECONDS.toNanos(30)),
+        eq(TimeUnit.NANOSECONDS));
+  }
+
+  @Test
+  public void returnsTheLastRefreshedTags() {
+    when(callback.getTags()).thenReturn(Arrays.asList("az:us-east-1a"));
+    cached.refresh();
+    assertEquals(Arrays.asList("az:us-east-1a"), cached.getTags());
+  }
+
+  @Test
+  public void notifiesChangesOnce() {
+    final List<String> tags = Arrays.asList("az:us-east-1a");
+    when(callback.getTags()).thenReturn(tags, Arrays.asList("az:us-east-1a"),
+        Arrays.asList("az:us-east-1b"));
+    cached.refresh();
+    cached.refresh();
+    cached.refresh();
+
+    verify(listener).onTagsChanged(tags);
+    verify(listener).onTagsChanged(Arrays.asList("az:us-east-1b"));
+    verify(listener, times(2)).onTagsChanged(any(List.class));
+  }
+
+  @Test
+  public void keepsThePreviousTagsWhenARefreshFails() {
+    when(callback.getTags()).thenReturn(Arrays.asList("az:us-east-1a"))
+        .thenThrow(new IllegalStateException("metadata unavailable"));
+    cached.refresh();
+    cached.refresh();
+
+    assertEquals(Arrays.asList("az:us-east-1a"), cached.getTags());
+    assertEquals(1, cached.getFailures());
+  }
+
+  @Test
+  public void stopsRefreshingWhenClosed() {
+    cached.start();
+    cached.close();
+
+    verify(future).cancel(false);
+    verify(executor, times(0)).shutdown();
+  }
+}
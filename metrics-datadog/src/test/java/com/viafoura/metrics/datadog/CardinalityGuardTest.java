@@ -0,0 +1,103 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CardinalityGuardTest {
+  private final MetricCache cache =
+      new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL);
+
+  @Test
+  public void admitsTheHeaviestValuesOfEachTag() {
+    final CardinalityGuard guard = new CardinalityGuard(2);
+    final MetricCache.Entry a = entry("requests[user:a,env:prod]", 10);
+    final MetricCache.Entry b = entry("requests[user:b,env:prod]", 5);
+    final MetricCache.Entry c = entry("requests[user:c,env:prod]", 1);
+
+    assertEquals(0, guard.observe(a, 1));
+    assertEquals(0, guard.observe(b, 1));
+    assertEquals(1, guard.observe(c, 1));
+    guard.endReport();
+    assertEquals(1, guard.getFoldedMetrics());
+
+    // c is now the heaviest value, b the lightest one
+    ((Counter) c.getMetric()).inc(100);
+    assertEquals(0, guard.observe(c, 2));
+    assertEquals(0, guard.observe(a, 2));
+    assertEquals(1, guard.observe(b, 2));
+  }
+
+  @Test
+  public void countsFoldedGauges() {
+    final CardinalityGuard guard = new CardinalityGuard(1);
+    guard.observe(cache.get("size[user:a]", gauge()), 1);
+    assertEquals(1, guard.observe(cache.get("size[user:b]", gauge()), 1));
+    guard.endReport();
+
+    assertEquals(1, guard.getFoldedMetrics());
+  }
+
+  @Test
+  public void evictsTheSketchesOfANameWithItsLastMetric() {
+    final MetricRegistry registry = new MetricRegistry();
+    final CardinalityGuard guard = new CardinalityGuard(2);
+    final MetricCache guarded =
+        new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL, guard);
+    registry.addListener(guarded);
+    registry.counter("requests[user:a]");
+    registry.counter("requests[user:b]");
+    guard.observe(guarded.get("requests[user:a]"), 1);
+    guard.observe(guarded.get("requests[user:b]"), 1);
+
+    registry.remove("requests[user:a]");
+    assertEquals(1, guard.size());
+    registry.remove("requests[user:b]");
+    assertEquals(0, guard.size());
+  }
+
+  @Test
+  public void foldsMaskedTagsIntoOtherAndDropsRolledUpTags() {
+    final TaggedName name = TaggedName.decode("requests[user:a,env:prod,client:b]");
+    final TaggedName folded = CardinalityGuard.fold(name, name.getEncodedTags(), 1, 4);
+
+    assertEquals("requests", folded.getMetricName());
+    assertEquals(Arrays.asList("user:other", "env:prod"), folded.getEncodedTags());
+  }
+
+  @Test
+  public void boundsTheValuesMonitoredPerTag() {
+    final CardinalityGuard.Sketch sketch = new CardinalityGuard.Sketch(10);
+    assertTrue(sketch.offer("user:heavy", 100000, 1));
+    int admitted = 1;
+    for (int i = 0; i < 100000; i++) {
+      if (sketch.offer("user:" + i, 1, 1)) {
+        admitted++;
+      }
+    }
+    assertEquals(10, admitted);
+    assertTrue(sketch.size() <= 20);
+    assertTrue(sketch.offer("user:heavy", 1, 2));
+  }
+
+  private static Gauge<Integer> gauge() {
+    return new Gauge<Integer>() {
+      public Integer getValue() {
+        return 1;
+      }
+    };
+  }
+
+  private MetricCache.Entry entry(String name, long count) {
+    final Counter counter = new Counter();
+    counter.inc(count);
+    return cache.get(name, counter);
+  }
+}
@@ -11,19 +11,39 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.viafoura.metrics.datadog.DatadogReporter.Expansion;
+import com.viafoura.metrics.datadog.model.DatadogCount;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
 import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import com.viafoura.metrics.datadog.transport.AsyncTransport;
 import com.viafoura.metrics.datadog.transport.Transport;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -207,6 +227,377 @@ public class DatadogReporterTest {
     verifyNoMoreInteractions(transport, request);
   }
 
+  @Test
+  public void reportsNativeCountsOfCountersAndMeters() throws Exception {
+    final Counter counter = new Counter();
+    final ResettingCounter resetting = new ResettingCounter();
+    final Meter meter = new Meter();
+    DatadogReporter countReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withNativeCounts()
+        .build();
+
+    counter.inc(5);
+    resetting.inc(3);
+    meter.mark(7);
+    final SortedMap<String, Counter> counters = this.<Counter>map("counter", counter);
+    counters.put("resetting", resetting);
+    countReporter.report(this.<Gauge>map(), counters, this.<Histogram>map(),
+        this.<Meter>map("meter", meter), this.<Timer>map());
+
+    counter.inc(2);
+    meter.mark(1);
+    countReporter.report(this.<Gauge>map(), counters, this.<Histogram>map(),
+        this.<Meter>map("meter", meter), this.<Timer>map());
+
+    final ArgumentCaptor<DatadogCounter> captor = ArgumentCaptor.forClass(DatadogCounter.class);
+    verify(request, times(6)).addCounter(captor.capture());
+    verify(request, never()).addGauge(any(DatadogGauge.class));
+    // The counts before the first report are the baseline of the counter and meter, unseen by
+    // the registry listener
+    assertEquals(Arrays.<DatadogCounter>asList(
+        new DatadogCount("counter", 0L, timestamp, null, HOST, tags),
+        new DatadogCount("resetting", 3L, timestamp, null, HOST, tags),
+        new DatadogCount("meter.count", 0L, timestamp, null, HOST, tags),
+        new DatadogCount("counter", 2L, timestamp, null, HOST, tags),
+        new DatadogCount("resetting", 0L, timestamp, null, HOST, tags),
+        new DatadogCount("meter.count", 1L, timestamp, null, HOST, tags)), captor.getAllValues());
+    for (DatadogCounter count : captor.getAllValues()) {
+      assertEquals("count", count.getType());
+    }
+  }
+
+  @Test
+  public void countsFromTheCountOfCountersWhenTheReporterIsBuilt() throws Exception {
+    metricsRegistry.counter("counter").inc(1000);
+    DatadogReporter countReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withNativeCounts()
+        .build();
+
+    countReporter.report();
+    metricsRegistry.counter("counter").inc(2);
+    countReporter.report();
+
+    final ArgumentCaptor<DatadogCounter> captor = ArgumentCaptor.forClass(DatadogCounter.class);
+    verify(request, times(2)).addCounter(captor.capture());
+    assertEquals(Arrays.<DatadogCounter>asList(
+        new DatadogCount("counter", 0L, timestamp, null, HOST, tags),
+        new DatadogCount("counter", 2L, timestamp, null, HOST, tags)), captor.getAllValues());
+  }
+
+  @Test
+  public void foldsTagValuesOverTheCardinalityLimit() throws Exception {
+    DatadogReporter guardedReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withNativeCounts()
+        .withCardinalityLimit(1)
+        .build();
+
+    final SortedMap<String, Counter> counters = this.<Counter>map();
+    counters.put("requests[user:a]", new Counter());
+    counters.put("requests[user:b]", new Counter());
+    counters.put("requests[user:c]", new Counter());
+    final SortedMap<String, Gauge> gauges = this.<Gauge>map();
+    gauges.put("latency[user:a]", gauge(10L));
+    gauges.put("latency[user:b]", gauge(20L));
+    // The first report sets the baseline of the counts
+    guardedReporter.report(gauges, counters, this.<Histogram>map(), this.<Meter>map(),
+        this.<Timer>map());
+    counters.get("requests[user:a]").inc(5);
+    counters.get("requests[user:b]").inc(2);
+    counters.get("requests[user:c]").inc(3);
+    guardedReporter.report(gauges, counters, this.<Histogram>map(), this.<Meter>map(),
+        this.<Timer>map());
+
+    final List<String> userA = new ArrayList<String>(tags);
+    userA.add(0, "user:a");
+    final List<String> userOther = new ArrayList<String>(tags);
+    userOther.add(0, "user:other");
+    verify(request, times(2)).addGauge(new DatadogGauge("latency", 10L, timestamp, HOST, userA));
+    verify(request, never()).addGauge(new DatadogGauge("latency", 20L, timestamp, HOST,
+        userOther));
+    verify(request).addCounter(new DatadogCount("requests", 5L, timestamp, null, HOST, userA));
+    verify(request).addCounter(new DatadogCount("requests", 5L, timestamp, null, HOST,
+        userOther));
+    verify(request, times(4)).addCounter(any(DatadogCounter.class));
+    assertEquals(3, guardedReporter.getFoldedMetrics());
+  }
+
+  @Test
+  public void rollsUpDroppedTags() throws Exception {
+    DatadogReporter rollupReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.MAX, Expansion.P99))
+        .withTransport(transport)
+        .withRollup(Pattern.compile("^(requests|latency)\\["), "client")
+        .build();
+
+    final SortedMap<String, Counter> counters = this.<Counter>map();
+    counters.put("requests[endpoint:a,client:x]", new Counter());
+    counters.put("requests[endpoint:a,client:y]", new Counter());
+    counters.put("requests[endpoint:b,client:x]", new Counter());
+    counters.put("sessions[client:x]", new Counter());
+    counters.get("requests[endpoint:a,client:x]").inc(2);
+    counters.get("requests[endpoint:a,client:y]").inc(3);
+    counters.get("requests[endpoint:b,client:x]").inc(4);
+    counters.get("sessions[client:x]").inc(1);
+    final SortedMap<String, Histogram> histograms = this.<Histogram>map();
+    histograms.put("latency[endpoint:a,client:x]", histogram(10L, 30L));
+    histograms.put("latency[endpoint:a,client:y]", histogram(20L, 70L));
+    rollupReporter.report(this.<Gauge>map(), counters, histograms, this.<Meter>map(),
+        this.<Timer>map());
+
+    final List<String> endpointA = Arrays.asList("endpoint:a");
+    verify(request).addGauge(new DatadogGauge("requests", 5L, timestamp, HOST, endpointA));
+    verify(request).addGauge(new DatadogGauge("requests", 4L, timestamp, HOST,
+        Arrays.asList("endpoint:b")));
+    verify(request).addGauge(new DatadogGauge("sessions", 1L, timestamp, HOST,
+        Arrays.asList("client:x")));
+    verify(request).addGauge(new DatadogGauge("latency.count", 30L, timestamp, HOST, endpointA));
+    verify(request).addGauge(new DatadogGauge("latency.max", 70L, timestamp, HOST, endpointA));
+    verify(request, times(5)).addGauge(any(DatadogGauge.class));
+  }
+
+  @Test
+  public void roundsValuesToTheirPrecision() throws Exception {
+    DatadogReporter roundingReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withExpansions(EnumSet.of(Expansion.MAX, Expansion.P99))
+        .withTransport(transport)
+        .withPrecision(Expansion.P99, Precision.significantDigits(3))
+        .withPrecision(Pattern.compile("^ratio"), Precision.decimals(2))
+        .build();
+
+    final SortedMap<String, Gauge> gauges = this.<Gauge>map();
+    gauges.put("ratio", gauge(0.123456789));
+    gauges.put("load", gauge(0.123456789));
+    final SortedMap<String, Histogram> histograms = this.<Histogram>map();
+    final Histogram histogram = histogram(1L, 30L);
+    when(histogram.getSnapshot().get99thPercentile()).thenReturn(12.345678901234567);
+    histograms.put("latency", histogram);
+    roundingReporter.report(gauges, this.<Counter>map(), histograms, this.<Meter>map(),
+        this.<Timer>map());
+
+    final List<String> noTags = new ArrayList<String>();
+    verify(request).addGauge(new DatadogGauge("ratio", 0.12, timestamp, HOST, noTags));
+    verify(request).addGauge(new DatadogGauge("load", 0.123456789, timestamp, HOST, noTags));
+    verify(request).addGauge(new DatadogGauge("latency.p99", 12.3, timestamp, HOST, noTags));
+    verify(request).addGauge(new DatadogGauge("latency.max", 30L, timestamp, HOST, noTags));
+  }
+
+  @Test
+  public void stampsAlignedReportsWithThePeriodBoundary() throws Exception {
+    when(clock.getTime()).thenReturn(timestamp * 1000 + 123);
+    DatadogReporter alignedReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withAlignedTicks(1, TimeUnit.SECONDS)
+        .build();
+    metricsRegistry.counter("counter").inc(3);
+
+    alignedReporter.start(10, TimeUnit.SECONDS);
+    try {
+      alignedReporter.report();
+    } finally {
+      alignedReporter.stop();
+    }
+
+    verify(request).addGauge(new DatadogGauge("counter", 3L, timestamp - timestamp % 10, HOST,
+        null));
+  }
+
+  @Test
+  public void schedulesAlignedTicksWithoutTruncatingTheDelay() throws Exception {
+    final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    when(clock.getTime()).thenReturn(1000190500L);
+    DatadogReporter alignedReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withAlignedTicks()
+        .build(executor, null, null);
+    metricsRegistry.counter("counter").inc(3);
+
+    alignedReporter.start(10, TimeUnit.SECONDS);
+    final ArgumentCaptor<Runnable> tick = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).scheduleAtFixedRate(tick.capture(), eq(TimeUnit.MILLISECONDS.toNanos(9500)),
+        eq(TimeUnit.SECONDS.toNanos(10)), eq(TimeUnit.NANOSECONDS));
+
+    // The first tick fires at the boundary, and is stamped with it
+    when(clock.getTime()).thenReturn(1000200003L);
+    tick.getValue().run();
+    verify(request).addGauge(new DatadogGauge("counter", 3L, 1000200L, HOST, null));
+  }
+
+  @Test
+  public void delaysAlignedReportsToTheNextBoundary() {
+    assertEquals(7000, DatadogReporter.alignedDelay(1003000, 10000, 0));
+    assertEquals(7250, DatadogReporter.alignedDelay(1003000, 10000, 250));
+    assertEquals(10000, DatadogReporter.alignedDelay(1000000, 10000, 0));
+  }
+
+  @Test
+  public void stretchesTheIntervalWhileSendsFail() throws Exception {
+    DatadogReporter adaptiveReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withAdaptiveInterval(4, 0, TimeUnit.SECONDS)
+        .build();
+    doThrow(new IOException("throttled")).doThrow(new IOException("throttled"))
+        .doNothing().when(request).send();
+
+    adaptiveReporter.report();
+    adaptiveReporter.report();
+    verify(transport, times(1)).prepare();
+
+    adaptiveReporter.report();
+    for (int i = 0; i < 3; i++) {
+      adaptiveReporter.report();
+    }
+    verify(transport, times(2)).prepare();
+
+    // Sends succeed again, so the interval halves back
+    adaptiveReporter.report();
+    adaptiveReporter.report();
+    adaptiveReporter.report();
+    verify(transport, times(4)).prepare();
+  }
+
+  @Test
+  public void drainsAsyncSendsOnStop() throws Exception {
+    final MetricRegistry selfRegistry = new MetricRegistry();
+    DatadogReporter asyncReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withAsyncSend(4, AsyncTransport.OverflowPolicy.BLOCK)
+        .withSelfMetrics(selfRegistry, false)
+        .build();
+    assertTrue(selfRegistry.getGauges().containsKey(
+        MetricRegistry.name(AsyncTransport.class, "queue-depth")));
+    assertTrue(metricsRegistry.getGauges().isEmpty());
+
+    asyncReporter.report();
+    asyncReporter.stop();
+    verify(request).send();
+    verify(transport, never()).close();
+  }
+
+  @Test
+  public void fetchesCachedDynamicTagsOnStart() throws Exception {
+    when(callback.getTags()).thenReturn(Arrays.asList("az:us-east-1a"));
+    DatadogReporter cachingReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withDynamicTagCallback(callback, 1, TimeUnit.HOURS)
+        .build();
+    verify(callback, never()).getTags();
+
+    cachingReporter.start(1, TimeUnit.HOURS);
+    verify(callback).getTags();
+    cachingReporter.stop();
+  }
+
+  @Test
+  public void timesFailedSends() throws Exception {
+    final MetricRegistry selfRegistry = new MetricRegistry();
+    DatadogReporter selfReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withSelfMetrics(selfRegistry, false)
+        .build();
+    doThrow(new IOException("throttled")).when(request).send();
+
+    selfReporter.report();
+    assertEquals(1, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "send")).getCount());
+  }
+
+  @Test
+  public void recordsAndReportsSelfMetrics() throws Exception {
+    final MetricRegistry selfRegistry = new MetricRegistry();
+    DatadogReporter selfReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT))
+        .withSelfMetrics(selfRegistry, true)
+        .build();
+    metricsRegistry.counter("counter").inc(2);
+
+    selfReporter.report();
+    selfReporter.report();
+
+    assertEquals(2, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "report")).getCount());
+    assertEquals(2, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "collection")).getCount());
+    assertEquals(2, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "send")).getCount());
+    verify(request, times(2)).addGauge(new DatadogGauge("counter", 2L, timestamp, HOST, tags));
+    // Each report sends the count of the reports before it
+    verify(request).addGauge(new DatadogGauge(
+        MetricRegistry.name(DatadogReporter.class, "report", "count"), 0L, timestamp, HOST, tags));
+    verify(request).addGauge(new DatadogGauge(
+        MetricRegistry.name(DatadogReporter.class, "report", "count"), 1L, timestamp, HOST, tags));
+  }
+
+  @Test
+  public void namesTheSelfMetricsOfEachReporterApart() throws Exception {
+    final MetricRegistry selfRegistry = new MetricRegistry();
+    final DatadogReporter.Builder builder = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withGaugeTimeout(1, TimeUnit.SECONDS)
+        .withSelfMetrics(selfRegistry, false);
+    final DatadogReporter first = builder.build();
+    final DatadogReporter second = builder.build();
+
+    second.report();
+    assertEquals(0, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "send")).getCount());
+    assertEquals(1, selfRegistry.timer(MetricRegistry.name(DatadogReporter.class, "2", "send")).getCount());
+    assertTrue(selfRegistry.getCounters().containsKey(
+        MetricRegistry.name(DatadogReporter.class, "2", "gauges", "timeouts")));
+
+    // Stopping a reporter removes its metrics, so that it can be rebuilt
+    first.stop();
+    assertFalse(selfRegistry.getGauges().containsKey(
+        MetricRegistry.name(DatadogReporter.class, "overruns")));
+    final DatadogReporter rebuilt = builder.build();
+    assertTrue(selfRegistry.getGauges().containsKey(
+        MetricRegistry.name(DatadogReporter.class, "overruns")));
+    rebuilt.stop();
+    second.stop();
+    assertTrue(selfRegistry.getMetrics().isEmpty());
+  }
+
   @Test
   public void reportsHistograms() throws Exception {
     final Histogram histogram = mock(Histogram.class);
@@ -551,6 +942,455 @@ public class DatadogReporterTest {
     verifyNoMoreInteractions(transport, request);
   }
 
+  @Test
+  public void computesOnlyConfiguredStatistics() throws Exception {
+    DatadogReporter reporterWithExpansions = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.P99))
+        .build();
+
+    final Histogram histogram = mock(Histogram.class);
+    when(histogram.getCount()).thenReturn(1L);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.get99thPercentile()).thenReturn(10.0);
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+
+    reporterWithExpansions.report(this.<Gauge>map(),
+        this.<Counter>map(),
+        this.<Histogram>map("histogram", histogram),
+        this.<Meter>map(),
+        this.<Timer>map());
+
+    verify(request).addGauge(new DatadogGauge("histogram.count", 1L, timestamp, HOST, tags));
+    verify(request).addGauge(new DatadogGauge("histogram.p99", 10.0, timestamp, HOST, tags));
+    verify(snapshot).get99thPercentile();
+    verifyNoMoreInteractions(snapshot);
+  }
+
+  @Test
+  public void skipsSnapshotWithoutStatisticExpansions() throws Exception {
+    DatadogReporter reporterWithExpansions = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT))
+        .build();
+
+    final Timer timer = mock(Timer.class);
+    when(timer.getCount()).thenReturn(1L);
+
+    reporterWithExpansions.report(this.<Gauge>map(),
+        this.<Counter>map(),
+        this.<Histogram>map(),
+        this.<Meter>map(),
+        map("timer", timer));
+
+    verify(request).addGauge(new DatadogGauge("timer.count", 1L, timestamp, HOST, tags));
+    verify(timer, never()).getSnapshot();
+    verify(timer, never()).getOneMinuteRate();
+  }
+
+  @Test
+  public void reportsSnapshotsInParallelInRegistryOrder() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      metricsRegistry.histogram("histogram" + i).update(i);
+      metricsRegistry.timer("timer" + i).update(i, TimeUnit.MILLISECONDS);
+      metricsRegistry.counter("counter" + i).inc(i);
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final Transport parallelTransport = mock(Transport.class);
+      final Transport.Request parallelRequest = mock(Transport.Request.class);
+      when(parallelTransport.prepare()).thenReturn(parallelRequest);
+
+      // The mean rate depends on when it is read, so leave it out of the comparison
+      final EnumSet<Expansion> expansions = EnumSet.complementOf(EnumSet.of(Expansion.RATE_MEAN));
+      DatadogReporter sequentialReporter = DatadogReporter
+          .forRegistry(metricsRegistry)
+          .withHost(HOST)
+          .withClock(clock)
+          .withTags(tags)
+          .withTransport(transport)
+          .withExpansions(expansions)
+          .build();
+      DatadogReporter parallelReporter = DatadogReporter
+          .forRegistry(metricsRegistry)
+          .withHost(HOST)
+          .withClock(clock)
+          .withTags(tags)
+          .withTransport(parallelTransport)
+          .withExpansions(expansions)
+          .withSnapshotPool(pool)
+          .build();
+
+      sequentialReporter.report();
+      parallelReporter.report();
+
+      ArgumentCaptor<DatadogGauge> sequential = ArgumentCaptor.forClass(DatadogGauge.class);
+      ArgumentCaptor<DatadogGauge> parallel = ArgumentCaptor.forClass(DatadogGauge.class);
+      verify(request, atLeastOnce()).addGauge(sequential.capture());
+      verify(parallelRequest, atLeastOnce()).addGauge(parallel.capture());
+      verify(parallelRequest).send();
+
+      assertEquals(40 + 40 * 11 + 40 * 14, parallel.getAllValues().size());
+      assertEquals(sequential.getAllValues(), parallel.getAllValues());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void mergesRolledUpSnapshotsInRegistryOrder() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      metricsRegistry.timer("latency[endpoint:e" + (i % 3) + ",client:c" + i + "]")
+          .update(i, TimeUnit.MILLISECONDS);
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final Transport parallelTransport = mock(Transport.class);
+      final Transport.Request parallelRequest = mock(Transport.Request.class);
+      when(parallelTransport.prepare()).thenReturn(parallelRequest);
+
+      final EnumSet<Expansion> expansions = EnumSet.of(Expansion.COUNT, Expansion.MAX,
+          Expansion.RATE_1_MINUTE);
+      DatadogReporter sequentialReporter = DatadogReporter
+          .forRegistry(metricsRegistry)
+          .withHost(HOST)
+          .withClock(clock)
+          .withTransport(transport)
+          .withExpansions(expansions)
+          .withRollup(Pattern.compile("^latency"), "client")
+          .build();
+      DatadogReporter parallelReporter = DatadogReporter
+          .forRegistry(metricsRegistry)
+          .withHost(HOST)
+          .withClock(clock)
+          .withTransport(parallelTransport)
+          .withExpansions(expansions)
+          .withRollup(Pattern.compile("^latency"), "client")
+          .withSnapshotPool(pool)
+          .build();
+
+      sequentialReporter.report();
+      parallelReporter.report();
+
+      ArgumentCaptor<DatadogGauge> sequential = ArgumentCaptor.forClass(DatadogGauge.class);
+      ArgumentCaptor<DatadogGauge> parallel = ArgumentCaptor.forClass(DatadogGauge.class);
+      verify(request, atLeastOnce()).addGauge(sequential.capture());
+      verify(parallelRequest, atLeastOnce()).addGauge(parallel.capture());
+
+      assertEquals(3 * 3, parallel.getAllValues().size());
+      assertEquals(sequential.getAllValues(), parallel.getAllValues());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void skipsUnchangedSeriesUntilHeartbeat() throws Exception {
+    DatadogReporter changeReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withChangeDetection(3)
+        .build();
+
+    final Counter counter = mock(Counter.class);
+    when(counter.getCount()).thenReturn(100L, 100L, 101L, 101L, 101L, 101L);
+
+    for (int i = 0; i < 6; i++) {
+      changeReporter.report(this.<Gauge>map(),
+          this.<Counter>map("counter", counter),
+          this.<Histogram>map(),
+          this.<Meter>map(),
+          this.<Timer>map());
+    }
+
+    // Reported on change (1st and 3rd report) and on heartbeat (6th report)
+    verify(request, times(1)).addGauge(new DatadogGauge("counter", 100L, timestamp, HOST, tags));
+    verify(request, times(2)).addGauge(new DatadogGauge("counter", 101L, timestamp, HOST, tags));
+    verify(request, times(6)).send();
+  }
+
+  @Test
+  public void skipsSnapshotsOfIdleHistograms() throws Exception {
+    DatadogReporter changeReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.MAX))
+        .withChangeDetection(10)
+        .build();
+
+    final Histogram histogram = mock(Histogram.class);
+    when(histogram.getCount()).thenReturn(1L, 1L, 2L);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.getMax()).thenReturn(2L, 3L);
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+
+    for (int i = 0; i < 3; i++) {
+      changeReporter.report(this.<Gauge>map(),
+          this.<Counter>map(),
+          this.<Histogram>map("histogram", histogram),
+          this.<Meter>map(),
+          this.<Timer>map());
+    }
+
+    verify(histogram, times(2)).getSnapshot();
+    verify(request).addGauge(new DatadogGauge("histogram.count", 1L, timestamp, HOST, tags));
+    verify(request).addGauge(new DatadogGauge("histogram.count", 2L, timestamp, HOST, tags));
+    verify(request).addGauge(new DatadogGauge("histogram.max", 2L, timestamp, HOST, tags));
+    verify(request).addGauge(new DatadogGauge("histogram.max", 3L, timestamp, HOST, tags));
+  }
+
+  @Test
+  public void reportsEachMetricOncePerPeriodWithShards() throws Exception {
+    when(clock.getTime()).thenReturn(timestamp * 1000, (timestamp + 5) * 1000);
+    for (int i = 0; i < 20; i++) {
+      metricsRegistry.counter("counter" + i).inc(i);
+    }
+
+    DatadogReporter shardedReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withShards(3)
+        .build();
+
+    shardedReporter.reportShard(0);
+    shardedReporter.reportShard(1);
+    shardedReporter.reportShard(2);
+
+    // All shards of a period carry the timestamp of its first shard
+    for (int i = 0; i < 20; i++) {
+      verify(request).addGauge(new DatadogGauge("counter" + i, (long) i, timestamp, HOST, tags));
+    }
+    verify(transport, times(3)).prepare();
+    verify(request, times(3)).send();
+    verifyNoMoreInteractions(transport, request);
+  }
+
+  @Test
+  public void reportsIntervalTiersEveryNthPeriod() throws Exception {
+    metricsRegistry.counter("requests").inc(1);
+    metricsRegistry.counter("config.size").inc(2);
+    metricsRegistry.counter("build.info").inc(3);
+
+    DatadogReporter tieredReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withIntervalTier(new NameMetricFilter("config."), 3)
+        .withIntervalTier(Pattern.compile("^build\\."), 2)
+        .build();
+
+    for (int i = 0; i < 4; i++) {
+      tieredReporter.report();
+    }
+
+    verify(request, times(4)).addGauge(new DatadogGauge("requests", 1L, timestamp, HOST, tags));
+    verify(request, times(2)).addGauge(new DatadogGauge("config.size", 2L, timestamp, HOST, tags));
+    verify(request, times(2)).addGauge(new DatadogGauge("build.info", 3L, timestamp, HOST, tags));
+    verify(request, times(4)).send();
+  }
+
+  @Test
+  public void addsPrimitivesToPrimitiveRequests() throws Exception {
+    final Transport.PrimitiveRequest primitiveRequest = mock(Transport.PrimitiveRequest.class);
+    when(transport.prepare()).thenReturn(primitiveRequest);
+
+    final Histogram histogram = mock(Histogram.class);
+    when(histogram.getCount()).thenReturn(1L);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.getMax()).thenReturn(2L);
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+
+    DatadogReporter primitiveReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.MAX))
+        .build();
+
+    for (int i = 0; i < 2; i++) {
+      primitiveReporter.report(this.<Gauge>map(),
+          this.<Counter>map(),
+          this.<Histogram>map("histogram[type:http]", histogram),
+          this.<Meter>map(),
+          this.<Timer>map());
+    }
+
+    final TagSet expectedTags = TagSet.of(Arrays.asList("type:http"), tags);
+    final ArgumentCaptor<TagSet> captor = ArgumentCaptor.forClass(TagSet.class);
+    verify(primitiveRequest, times(2)).addGauge(eq("histogram.count"), eq(1L), eq(timestamp),
+        eq(HOST), captor.capture());
+    verify(primitiveRequest, times(2)).addGauge(eq("histogram.max"), eq(2L), eq(timestamp),
+        eq(HOST), captor.capture());
+    verify(primitiveRequest, never()).addGauge(any(DatadogGauge.class));
+
+    // Every series of the metric shares one tag set, built once
+    assertEquals(expectedTags, captor.getValue());
+    for (TagSet tagSet : captor.getAllValues()) {
+      assertSame(captor.getValue(), tagSet);
+    }
+  }
+
+  @Test
+  public void readsPrimitiveGaugesWithoutBoxing() throws Exception {
+    final Transport.PrimitiveRequest primitiveRequest = mock(Transport.PrimitiveRequest.class);
+    when(transport.prepare()).thenReturn(primitiveRequest);
+    final LongGauge longGauge = mock(LongGauge.class);
+    when(longGauge.getLongValue()).thenReturn(3L);
+    final DoubleGauge doubleGauge = mock(DoubleGauge.class);
+    when(doubleGauge.getDoubleValue()).thenReturn(0.5);
+
+    final SortedMap<String, Gauge> gauges = this.<Gauge>map("long", longGauge);
+    gauges.put("double", doubleGauge);
+    reporter.report(gauges,
+        this.<Counter>map(),
+        this.<Histogram>map(),
+        this.<Meter>map(),
+        this.<Timer>map());
+
+    verify(primitiveRequest).addGauge(eq("long"), eq(3L), eq(timestamp), eq(HOST), any(TagSet.class));
+    verify(primitiveRequest).addGauge(eq("double"), eq(0.5), eq(timestamp), eq(HOST), any(TagSet.class));
+    verify(longGauge, never()).getValue();
+    verify(doubleGauge, never()).getValue();
+  }
+
+  @Test
+  public void readsPrimitiveGaugesInlineWithAGaugeTimeout() throws Exception {
+    final Transport.PrimitiveRequest primitiveRequest = mock(Transport.PrimitiveRequest.class);
+    when(transport.prepare()).thenReturn(primitiveRequest);
+    final LongGauge longGauge = mock(LongGauge.class);
+    when(longGauge.getLongValue()).thenReturn(3L);
+    metricsRegistry.register("long", longGauge);
+    metricsRegistry.register("boxed", gauge(2L));
+
+    DatadogReporter timeoutReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withGaugeTimeout(1, TimeUnit.SECONDS)
+        .build();
+    timeoutReporter.report();
+    timeoutReporter.stop();
+
+    final InOrder inOrder = inOrder(primitiveRequest);
+    inOrder.verify(primitiveRequest).addGauge(eq("boxed"), eq(2L), eq(timestamp), eq(HOST), any(TagSet.class));
+    inOrder.verify(primitiveRequest).addGauge(eq("long"), eq(3L), eq(timestamp), eq(HOST), any(TagSet.class));
+    verify(longGauge, never()).getValue();
+  }
+
+  @Test
+  public void defersLowPriorityMetricsOverTimeBudget() throws Exception {
+    // Every reading of the tick is 2ms after the previous one, so each report is over budget
+    // as soon as it starts
+    when(clock.getTick()).thenAnswer(new Answer<Long>() {
+      private long tick;
+
+      public Long answer(InvocationOnMock invocation) {
+        tick += TimeUnit.MILLISECONDS.toNanos(2);
+        return tick;
+      }
+    });
+    metricsRegistry.counter("slo.errors").inc(1);
+    metricsRegistry.counter("misc").inc(2);
+    final Histogram histogram = mock(Histogram.class);
+    when(histogram.getCount()).thenReturn(3L);
+    metricsRegistry.register("batch.size", histogram);
+
+    DatadogReporter budgetReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.MAX))
+        .withPriority(Pattern.compile("^slo\\."), 10)
+        .withTimeBudget(1, TimeUnit.MILLISECONDS)
+        .build();
+
+    budgetReporter.report();
+    budgetReporter.report();
+
+    // Deferred by the first report, then reported without statistics after the critical metrics
+    final InOrder inOrder = inOrder(request);
+    inOrder.verify(request).addGauge(new DatadogGauge("slo.errors", 1L, timestamp, HOST, tags));
+    inOrder.verify(request).send();
+    inOrder.verify(request).addGauge(new DatadogGauge("slo.errors", 1L, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("misc", 2L, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("batch.size.count", 3L, timestamp, HOST, tags));
+    inOrder.verify(request).send();
+    verify(histogram, never()).getSnapshot();
+    assertEquals(2, budgetReporter.getDeferrals());
+    assertEquals(2, budgetReporter.getOverruns());
+  }
+
+  @Test
+  public void countsSnapshotsOnThePoolAgainstTheTimeBudget() throws Exception {
+    // Each snapshot takes 1ms, and nothing else takes any time
+    final AtomicLong now = new AtomicLong();
+    when(clock.getTick()).thenAnswer(new Answer<Long>() {
+      public Long answer(InvocationOnMock invocation) {
+        return now.get();
+      }
+    });
+    final Snapshot snapshot = mock(Snapshot.class);
+    for (int i = 0; i < 20; i++) {
+      final Histogram histogram = mock(Histogram.class);
+      when(histogram.getCount()).thenReturn(1L);
+      when(histogram.getSnapshot()).thenAnswer(new Answer<Snapshot>() {
+        public Snapshot answer(InvocationOnMock invocation) {
+          now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+          return snapshot;
+        }
+      });
+      metricsRegistry.register(String.format("batch.size.%02d", i), histogram);
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      DatadogReporter budgetReporter = DatadogReporter
+          .forRegistry(metricsRegistry)
+          .withHost(HOST)
+          .withClock(clock)
+          .withTransport(transport)
+          .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.MAX))
+          .withPriority(Pattern.compile("^slo\\."), 10)
+          .withTimeBudget(1, TimeUnit.MILLISECONDS)
+          .withSnapshotPool(pool)
+          .build();
+
+      budgetReporter.report();
+
+      // The first chunk of 16 histograms is forked within the budget, which its snapshots spend
+      assertEquals(16, now.get() / TimeUnit.MILLISECONDS.toNanos(1));
+      assertEquals(4, budgetReporter.getDeferrals());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   private class NameMetricFilter implements MetricFilter {
     private final String include;
 
@@ -573,6 +1413,16 @@ public class DatadogReporterTest {
     return map;
   }
 
+  private Histogram histogram(long count, long max) {
+    final Histogram histogram = mock(Histogram.class);
+    when(histogram.getCount()).thenReturn(count);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.getMax()).thenReturn(max);
+    when(snapshot.get99thPercentile()).thenReturn((double) max);
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+    return histogram;
+  }
+
   private <T> Gauge gauge(T value) {
     final Gauge gauge = mock(Gauge.class);
     when(gauge.getValue()).thenReturn(value);
@@ -0,0 +1,111 @@
+package com.viafoura.metrics.datadog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the Java 11 version of {@link FlightRecorderEvents}, built into
+ * {@code META-INF/versions/11} on Java 11 and later. Tests run against the class directory,
+ * where the versioned class is not picked up, so it is loaded explicitly.
+ */
+public class FlightRecorderEventsTest {
+  private static final String VERSIONED = "META-INF/versions/11/";
+  private static final String EVENTS = FlightRecorderEvents.class.getName();
+
+  private Class<?> events;
+
+  @Before
+  public void loadVersionedClass() throws Exception {
+    assumeTrue(!System.getProperty("java.specification.version").startsWith("1."));
+    final ClassLoader parent = getClass().getClassLoader();
+    assertNotNull("Java 11 version of FlightRecorderEvents not built",
+        parent.getResource(VERSIONED + EVENTS.replace('.', '/') + ".class"));
+    events = new VersionedClassLoader(parent).loadClass(EVENTS);
+  }
+
+  @Test
+  public void recordsNothingWithoutRecording() throws Exception {
+    final Object phase = method("beginPhase").invoke(null);
+    assertNull(phase);
+    method("endPhase", Object.class, String.class, int.class).invoke(null, phase, "collect", 0);
+  }
+
+  @Test
+  public void recordsEventsWhileEnabled() throws Exception {
+    final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+    final Object recording = recordingClass.getConstructor().newInstance();
+    recordingClass.getMethod("enable", String.class)
+        .invoke(recording, "com.viafoura.metrics.datadog.ReportPhase");
+    recordingClass.getMethod("enable", String.class)
+        .invoke(recording, "com.viafoura.metrics.datadog.TransportSend");
+    recordingClass.getMethod("start").invoke(recording);
+    try {
+      final Object phase = method("beginPhase").invoke(null);
+      assertNotNull(phase);
+      method("endPhase", Object.class, String.class, int.class).invoke(null, phase, "collect", 0);
+
+      final Object send = method("beginSend").invoke(null);
+      assertNotNull(send);
+      method("endSend", Object.class, String.class, int.class, long.class, String.class)
+          .invoke(null, send, "http", 10, 1024L, "ok");
+    } finally {
+      recordingClass.getMethod("stop").invoke(recording);
+      recordingClass.getMethod("close").invoke(recording);
+    }
+  }
+
+  private Method method(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+    return events.getMethod(name, parameterTypes);
+  }
+
+  /**
+   * Loads FlightRecorderEvents and its nested classes from their versioned class files.
+   */
+  private static final class VersionedClassLoader extends ClassLoader {
+    VersionedClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.equals(EVENTS) && !name.startsWith(EVENTS + "$")) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+          final byte[] bytes = read(VERSIONED + name.replace('.', '/') + ".class");
+          loaded = defineClass(name, bytes, 0, bytes.length);
+        }
+        return loaded;
+      }
+    }
+
+    private byte[] read(String resource) throws ClassNotFoundException {
+      final InputStream in = getParent().getResourceAsStream(resource);
+      if (in == null) {
+        throw new ClassNotFoundException(resource);
+      }
+      try {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+      } catch (IOException e) {
+        throw new ClassNotFoundException(resource, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GaugeEvaluatorTest {
+  private final MetricCache cache =
+      new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL);
+  private final List<String> tags = Collections.emptyList();
+
+  @Test
+  public void reportsLastValueOfGaugesTimingOut() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger evaluations = new AtomicInteger();
+    final MetricCache.Entry slow = cache.get("slow", new Gauge<Integer>() {
+      public Integer getValue() {
+        if (evaluations.incrementAndGet() > 1) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return 1;
+      }
+    });
+    final MetricCache.Entry fast = cache.get("fast", gauge(2));
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      GaugeEvaluator evaluator = new GaugeEvaluator(executor, false,
+          TimeUnit.MILLISECONDS.toNanos(50), 0, 0, Clock.defaultClock(), null);
+      List<MetricCache.Entry> entries = Arrays.asList(slow, fast);
+
+      assertArrayEquals(new Number[] { 1, 2 }, evaluator.evaluateAll(entries, 1, tags));
+      assertArrayEquals(new Number[] { 1, 2 }, evaluator.evaluateAll(entries, 2, tags));
+      assertArrayEquals(new Number[] { 1, 2 }, evaluator.evaluateAll(entries, 3, tags));
+
+      // The pending evaluation is not started again
+      assertEquals(2, evaluations.get());
+      release.countDown();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void quarantinesGaugesFailingInARow() {
+    final AtomicInteger evaluations = new AtomicInteger();
+    final MetricCache.Entry failing = cache.get("failing", new Gauge<Integer>() {
+      public Integer getValue() {
+        evaluations.incrementAndGet();
+        throw new IllegalStateException("unavailable");
+      }
+    });
+    GaugeEvaluator evaluator = new GaugeEvaluator(null, false, 0, 2, 3, Clock.defaultClock(), null);
+
+    for (long report = 1; report <= 7; report++) {
+      assertNull(evaluator.evaluate(failing, report, tags));
+    }
+
+    // Quarantined after the 2nd report for 3 reports, then again by the failure of the 6th
+    assertEquals(3, evaluations.get());
+  }
+
+  @Test
+  public void quarantinesNonNumericGauges() {
+    final MetricCache.Entry text = cache.get("text", gauge("text"));
+    GaugeEvaluator evaluator = new GaugeEvaluator(null, false, 0, 1, 10, Clock.defaultClock(), null);
+
+    assertNull(evaluator.evaluate(text, 1, tags));
+    assertTrue(text.isQuarantined(2));
+    assertFalse(text.isQuarantined(12));
+  }
+
+  @Test
+  public void countsNonNumericGaugesApartFromFailures() {
+    final MetricRegistry registry = new MetricRegistry();
+    final MetricCache.Entry text = cache.get("text", gauge("text"));
+    final MetricCache.Entry missing = cache.get("missing", gauge(null));
+    GaugeEvaluator evaluator = new GaugeEvaluator(null, false, 0, 0, 0, Clock.defaultClock(),
+        SelfMetrics.claim(registry, DatadogReporter.class));
+
+    assertNull(evaluator.evaluate(text, 1, tags));
+    assertNull(evaluator.evaluate(missing, 1, tags));
+    assertEquals(0, registry.counter(
+        MetricRegistry.name(DatadogReporter.class, "gauges", "failures")).getCount());
+    assertEquals(2, registry.counter(
+        MetricRegistry.name(DatadogReporter.class, "gauges", "non-numeric")).getCount());
+    assertFalse(text.isQuarantined(2));
+  }
+
+  private static <T> Gauge<T> gauge(final T value) {
+    return new Gauge<T>() {
+      public T getValue() {
+        return value;
+      }
+    };
+  }
+}
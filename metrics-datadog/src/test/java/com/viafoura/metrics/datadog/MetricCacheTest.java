@@ -0,0 +1,145 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.viafoura.metrics.datadog.DatadogReporter.Expansion;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class MetricCacheTest {
+
+  @Test
+  public void resolvesPrefixedTaggedNames() {
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), "prefix", MetricFilter.ALL);
+    MetricCache.Entry entry = cache.get("requests[env:prod,region:us]");
+
+    assertEquals("prefix.requests", entry.getName().getMetricName());
+    assertEquals(Arrays.asList("env:prod", "region:us"), entry.getName().getEncodedTags());
+    assertEquals("prefix.requests.p99", entry.getName(Expansion.P99).getMetricName());
+    assertEquals(Arrays.asList("env:prod", "region:us"),
+        entry.getName(Expansion.P99).getEncodedTags());
+  }
+
+  @Test
+  public void reusesResolvedNames() {
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL);
+    MetricCache.Entry entry = cache.get("requests");
+
+    assertSame(entry, cache.get("requests"));
+    assertSame(entry.getName(), cache.get("requests").getName());
+    assertSame(entry.getName(Expansion.COUNT), cache.get("requests").getName(Expansion.COUNT));
+  }
+
+  @Test
+  public void evictsRemovedMetrics() {
+    MetricRegistry registry = new MetricRegistry();
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL);
+    registry.addListener(cache);
+
+    registry.counter("counter");
+    registry.timer("timer");
+    cache.get("counter");
+    cache.get("timer");
+    assertEquals(2, cache.size());
+
+    registry.remove("counter");
+    assertEquals(1, cache.size());
+    registry.remove("timer");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void indexesMetricsMatchingTheFilterByType() {
+    MetricRegistry registry = new MetricRegistry();
+    final Counter counter = registry.counter("requests");
+    registry.counter("ignored.requests");
+
+    final int[] evaluations = new int[1];
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), null, new MetricFilter() {
+      public boolean matches(String name, Metric metric) {
+        evaluations[0]++;
+        return !name.startsWith("ignored.");
+      }
+    });
+    registry.addListener(cache);
+    registry.timer("latency");
+
+    assertEquals(1, cache.getCounters().size());
+    MetricCache.Entry entry = cache.getCounters().iterator().next();
+    assertEquals("requests", entry.getRegistryName());
+    assertSame(counter, entry.getMetric());
+    assertEquals(1, cache.getTimers().size());
+    assertEquals(0, cache.getGauges().size());
+    assertEquals(3, evaluations[0]);
+
+    registry.remove("requests");
+    assertFalse(cache.getCounters().iterator().hasNext());
+  }
+
+  @Test
+  public void visitsOnlyTheTiersDueAndTheDeferredEntries() {
+    MetricRegistry registry = new MetricRegistry();
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL,
+        null, new MetricCache.Tiering() {
+          public int periods(String name, Metric metric) {
+            return name.startsWith("config.") ? 3 : 1;
+          }
+        });
+    registry.addListener(cache);
+    registry.counter("requests");
+    registry.counter("config.reloads");
+
+    assertEquals(2, cache.getCounters(1).size());
+    assertEquals(1, cache.getCounters(2).size());
+    assertEquals(2, cache.getCounters(4).size());
+
+    MetricCache.Entry config = cache.get("config.reloads");
+    config.setDeferred(true);
+    assertEquals(2, cache.getCounters(2).size());
+    assertEquals(2, cache.getCounters(4).size());
+    config.setDeferred(false);
+    assertEquals(1, cache.getCounters(2).size());
+
+    config.setDeferred(true);
+    registry.remove("config.reloads");
+    assertEquals(1, cache.getCounters(2).size());
+    assertEquals(1, cache.getCounters(4).size());
+  }
+
+  @Test
+  public void sortsIndexedMetricsByNameAcrossTiers() {
+    MetricRegistry registry = new MetricRegistry();
+    MetricCache cache = new MetricCache(new DefaultMetricNameFormatter(), null, MetricFilter.ALL,
+        null, new MetricCache.Tiering() {
+          public int periods(String name, Metric metric) {
+            return name.startsWith("b") ? 2 : 1;
+          }
+        });
+    registry.addListener(cache);
+    registry.counter("c");
+    registry.counter("b");
+    registry.counter("a");
+
+    assertEquals(Arrays.asList("a", "b", "c"), names(cache.getCounters(1)));
+    assertEquals(Arrays.asList("a", "c"), names(cache.getCounters(2)));
+    assertEquals(Arrays.asList("a", "b", "c"), names(cache.getCounters()));
+  }
+
+  private static List<String> names(Collection<MetricCache.Entry> entries) {
+    final List<String> names = new ArrayList<String>();
+    for (MetricCache.Entry entry : entries) {
+      names.add(entry.getRegistryName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,123 @@
+package com.viafoura.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.transport.Transport;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MultiRegistryReporterTest {
+  private static final String HOST = "hostname";
+  private final long timestamp = 1000198;
+  private final Clock clock = mock(Clock.class);
+  private final Transport transport = mock(Transport.class);
+  private final Transport.Request request = mock(Transport.Request.class);
+  private final MetricRegistry tenantA = new MetricRegistry();
+  private final MetricRegistry tenantB = new MetricRegistry();
+
+  @Before
+  public void setUp() throws IOException {
+    when(clock.getTime()).thenReturn(timestamp * 1000);
+    when(transport.prepare()).thenReturn(request);
+  }
+
+  @Test
+  public void reportsAllRegistriesInOneRequest() throws Exception {
+    tenantA.counter("requests").inc(3);
+    tenantA.counter("internal").inc(1);
+    tenantB.counter("requests").inc(5);
+    final MultiRegistryReporter reporter = MultiRegistryReporter.forTransport(transport)
+        .withRegistry(DatadogReporter.forRegistry(tenantA)
+            .withHost(HOST)
+            .withClock(clock)
+            .withTags(Arrays.asList("tenant:a"))
+            .filter(MetricFilter.startsWith("requests")))
+        .withRegistry(DatadogReporter.forRegistry(tenantB)
+            .withHost(HOST)
+            .withClock(clock)
+            .withPrefix("b")
+            .withTags(Arrays.asList("tenant:b")))
+        .build();
+
+    reporter.report();
+
+    verify(transport, times(1)).prepare();
+    verify(request).addGauge(new DatadogGauge("requests", 3L, timestamp, HOST,
+        Arrays.asList("tenant:a")));
+    verify(request).addGauge(new DatadogGauge("b.requests", 5L, timestamp, HOST,
+        Arrays.asList("tenant:b")));
+    verify(request, times(2)).addGauge(any(DatadogGauge.class));
+    verify(request, times(1)).send();
+    assertEquals(2, reporter.getReporters().size());
+    reporter.stop();
+  }
+
+  @Test
+  public void startsTheTagsOfRegistriesAndStopsTheirReporters() throws Exception {
+    final DynamicTagsCallback callback = mock(DynamicTagsCallback.class);
+    when(callback.getTags()).thenReturn(Arrays.asList("az:us-east-1a"));
+    final MultiRegistryReporter reporter = MultiRegistryReporter.forTransport(transport)
+        .withRegistry(DatadogReporter.forRegistry(tenantA)
+            .withHost(HOST)
+            .withClock(clock)
+            .withDynamicTagCallback(callback, 1, TimeUnit.HOURS))
+        .withRegistry(DatadogReporter.forRegistry(tenantB)
+            .withHost(HOST)
+            .withClock(clock)
+            .withDynamicTagCallback(callback, 1, TimeUnit.HOURS))
+        .build();
+    verify(callback, never()).getTags();
+
+    reporter.start(1, TimeUnit.HOURS);
+    verify(callback, times(2)).getTags();
+    reporter.stop();
+
+    // Stopped reporters no longer track their registry
+    tenantA.counter("requests").inc(3);
+    reporter.report();
+    verify(request, never()).addGauge(any(DatadogGauge.class));
+  }
+
+  @Test
+  public void recordsTheSelfMetricsOfEachRegistryApart() throws Exception {
+    final MetricRegistry selfRegistry = new MetricRegistry();
+    tenantB.counter("requests").inc(5);
+    final MultiRegistryReporter reporter = MultiRegistryReporter.forTransport(transport)
+        .withRegistry(DatadogReporter.forRegistry(tenantA)
+            .withHost(HOST)
+            .withClock(clock))
+        .withRegistry(DatadogReporter.forRegistry(tenantB)
+            .withHost(HOST)
+            .withClock(clock)
+            .withCardinalityLimit(100))
+        .withSelfMetrics(selfRegistry)
+        .build();
+
+    reporter.report();
+    assertEquals(0, selfRegistry.getGauges().get(
+        MetricRegistry.name(DatadogReporter.class, "metrics")).getValue());
+    assertEquals(1, selfRegistry.getGauges().get(
+        MetricRegistry.name(DatadogReporter.class, "2", "metrics")).getValue());
+    assertEquals(1, selfRegistry.timer(
+        MetricRegistry.name(DatadogReporter.class, "2", "collection")).getCount());
+    assertTrue(selfRegistry.getGauges().containsKey(
+        MetricRegistry.name(DatadogReporter.class, "2", "folded-metrics")));
+    reporter.stop();
+    assertTrue(selfRegistry.getMetrics().isEmpty());
+  }
+}
@@ -0,0 +1,45 @@
+package com.viafoura.metrics.datadog;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrecisionTest {
+
+  @Test
+  public void roundsToSignificantDigits() {
+    final Precision precision = Precision.significantDigits(3);
+    assertEquals("12.3", Double.toString(precision.round(12.345678901234567)));
+    assertEquals("0.00123", Double.toString(precision.round(0.0012345678)));
+    assertEquals(-0.988, precision.round(-0.98765), 0.0);
+    // The integral part is never rounded
+    assertEquals(1235.0, precision.round(1234.5), 0.0);
+  }
+
+  @Test
+  public void roundsToDecimals() {
+    final Precision precision = Precision.decimals(2);
+    assertEquals("12.35", Double.toString(precision.round(12.345678901234567)));
+    assertEquals(0.0, precision.round(0.001), 0.0);
+  }
+
+  @Test
+  public void keepsIntegralAndSpecialValues() {
+    final Precision precision = Precision.significantDigits(1);
+    assertEquals(123456.0, precision.round(123456.0), 0.0);
+    assertEquals(1e300, precision.round(1e300), 0.0);
+    assertEquals(Double.NaN, precision.round(Double.NaN), 0.0);
+    assertEquals(Double.POSITIVE_INFINITY, precision.round(Double.POSITIVE_INFINITY), 0.0);
+  }
+
+  @Test
+  public void parsesPrecisions() {
+    assertEquals(Precision.significantDigits(3), Precision.valueOf("3 digits"));
+    assertEquals(Precision.decimals(2), Precision.valueOf(" 2  decimals "));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidPrecisions() {
+    Precision.valueOf("3 places");
+  }
+}
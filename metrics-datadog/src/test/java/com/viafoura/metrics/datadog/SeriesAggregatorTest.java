@@ -0,0 +1,37 @@
+package com.viafoura.metrics.datadog;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesAggregatorTest {
+
+  @Test
+  public void mergesSeriesUntilDrained() {
+    final SeriesAggregator aggregator = new SeriesAggregator();
+    final TaggedName count = TaggedName.decode("requests.count[endpoint:a]");
+    final TaggedName max = TaggedName.decode("requests.max[endpoint:a]");
+    final TaggedName min = TaggedName.decode("requests.min[endpoint:a]");
+    aggregator.add(count, 2, true, true, SeriesAggregator.Merge.SUM);
+    aggregator.add(count, 3, true, true, SeriesAggregator.Merge.SUM);
+    aggregator.add(max, 7, true, false, SeriesAggregator.Merge.MAX);
+    aggregator.add(max, 4.5, false, false, SeriesAggregator.Merge.MAX);
+    aggregator.add(min, 4, true, false, SeriesAggregator.Merge.MIN);
+    aggregator.add(min, 1, true, false, SeriesAggregator.Merge.MIN);
+
+    final List<SeriesAggregator.Series> merged = aggregator.drain();
+    assertEquals(3, merged.size());
+    assertEquals(count, merged.get(0).name);
+    assertEquals(5, merged.get(0).value, 0);
+    assertTrue(merged.get(0).count);
+    assertTrue(merged.get(0).integral);
+    assertEquals(7, merged.get(1).value, 0);
+    assertFalse(merged.get(1).integral);
+    assertEquals(1, merged.get(2).value, 0);
+    assertTrue(aggregator.drain().isEmpty());
+  }
+}
@@ -0,0 +1,34 @@
+package com.viafoura.metrics.datadog.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TagSetTest {
+
+  @Test
+  public void internsEqualTagSets() {
+    final List<String> tags = new ArrayList<String>(Arrays.asList("env:prod", "version:1.0.0"));
+    final TagSet tagSet = TagSet.of(Arrays.asList("type:http"), tags);
+
+    assertSame(tagSet, TagSet.of(Arrays.asList("type:http", "env:prod"),
+        Arrays.asList("version:1.0.0")));
+    assertNotSame(tagSet, TagSet.of(Arrays.asList("type:udp"), tags));
+    assertSame(TagSet.EMPTY, TagSet.of(null, new ArrayList<String>()));
+  }
+
+  @Test
+  public void encodesTagsAsJsonOnce() {
+    final TagSet tagSet = TagSet.of(Arrays.asList("path:/a\"b", "env:prod"));
+
+    assertEquals("[\"path:/a\\\"b\",\"env:prod\"]", tagSet.toJson().getValue());
+    assertSame(tagSet.toJson(), tagSet.toJson());
+    assertEquals("[]", TagSet.EMPTY.toJson().getValue());
+  }
+}
@@ -0,0 +1,128 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AsyncTransportTest {
+  private final Transport transport = mock(Transport.class);
+  private final Transport.Request request = mock(Transport.Request.class);
+
+  @Test
+  public void sendsOnSenderThread() throws Exception {
+    when(transport.prepare()).thenReturn(request);
+    AsyncTransport asyncTransport = new AsyncTransport.Builder(transport).build();
+
+    Transport.Request asyncRequest = asyncTransport.prepare();
+    asyncRequest.addGauge(gauge("gauge", 1));
+    verify(transport, never()).prepare();
+
+    asyncRequest.send();
+    verify(request, timeout(1000)).send();
+    verify(request).addGauge(gauge("gauge", 1));
+
+    asyncTransport.close();
+    verify(transport).close();
+  }
+
+  @Test
+  public void dropsOldestRequestWhenQueueIsFull() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(transport.prepare()).thenReturn(request);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        sending.countDown();
+        release.await();
+        return null;
+      }
+    }).when(request).send();
+
+    MetricRegistry registry = new MetricRegistry();
+    AsyncTransport asyncTransport = new AsyncTransport.Builder(transport)
+        .withQueueSize(1)
+        .withMetricRegistry(registry)
+        .build();
+    final Timer sendLatency = registry.timer(MetricRegistry.name(AsyncTransport.class, "send-latency"));
+
+    send(asyncTransport, gauge("first", 1));
+    assertTrue(sending.await(1, TimeUnit.SECONDS));
+    send(asyncTransport, gauge("second", 2));
+    send(asyncTransport, gauge("third", 3));
+
+    assertEquals(1, asyncTransport.getDropped());
+    assertEquals(1, asyncTransport.getQueueDepth());
+    assertEquals(1, registry.counter(MetricRegistry.name(AsyncTransport.class, "dropped")).getCount());
+
+    release.countDown();
+    asyncTransport.close();
+
+    verify(request).addGauge(gauge("first", 1));
+    verify(request, never()).addGauge(gauge("second", 2));
+    verify(request).addGauge(gauge("third", 3));
+    assertEquals(2, sendLatency.getCount());
+  }
+
+  @Test
+  public void replaysPrimitivesAsSeriesIntoSeriesOnlyRequests() throws Exception {
+    when(transport.prepare()).thenReturn(request);
+    AsyncTransport asyncTransport = new AsyncTransport.Builder(transport).build();
+
+    Transport.PrimitiveRequest asyncRequest = (Transport.PrimitiveRequest) asyncTransport.prepare();
+    asyncRequest.addGauge("gauge", 1.5, 1000L, "host", TagSet.of(Arrays.asList("env:prod")));
+    asyncRequest.addCounter("counter", 2L, 1000L, "host", TagSet.EMPTY);
+    asyncRequest.send();
+    asyncTransport.close();
+
+    verify(request).addGauge(new DatadogGauge("gauge", 1.5, 1000L, "host", Arrays.asList("env:prod")));
+    verify(request).addCounter(new DatadogCounter("counter", 2L, 1000L, "host", null));
+    verify(request).send();
+  }
+
+  private static void send(AsyncTransport transport, DatadogGauge gauge) throws Exception {
+    Transport.Request request = transport.prepare();
+    request.addGauge(gauge);
+    request.send();
+  }
+
+  private static DatadogGauge gauge(String name, long value) {
+    return new DatadogGauge(name, value, 1000L, "host", null);
+  }
+
+  @Test
+  public void namesTheMetricsOfEachTransportApart() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    AsyncTransport first = new AsyncTransport.Builder(transport).withMetricRegistry(registry).build();
+    AsyncTransport second = new AsyncTransport.Builder(transport).withMetricRegistry(registry).build();
+    assertTrue(registry.getGauges().containsKey(
+        MetricRegistry.name(AsyncTransport.class, "2", "queue-depth")));
+
+    first.shutdown();
+    second.shutdown();
+    assertTrue(registry.getMetrics().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsConcurrentSendersOverTransportsDroppingTimestamps() throws Exception {
+    when(transport.dropsTimestamps()).thenReturn(true);
+    new AsyncTransport.Builder(transport).withSenderThreads(2).build();
+  }
+}
@@ -0,0 +1,96 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.viafoura.metrics.datadog.model.DatadogCount;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import org.junit.Test;
+import org.mockito.AdditionalMatchers;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchingTransportTest {
+  private final Transport transport = mock(Transport.class);
+  private final TagSet tags = TagSet.of(Arrays.asList("env:prod"));
+
+  @Test
+  public void sendsSeveralReportsAsSeriesOfSeveralPoints() throws Exception {
+    Transport.MultiPointRequest request = mock(Transport.MultiPointRequest.class);
+    when(transport.prepare()).thenReturn(request);
+    BatchingTransport batching = new BatchingTransport.Builder(transport).withBatchSize(2).build();
+
+    report(batching, 1000L, 3L);
+    verify(transport, never()).prepare();
+    assertEquals(1, batching.getPendingReports());
+
+    report(batching, 1010L, 5L);
+    verify(request).addSeries(eq("count"), eq("requests"),
+        AdditionalMatchers.aryEq(new long[]{1000L, 1010L}),
+        AdditionalMatchers.aryEq(new long[]{3L, 5L}), eq(false), eq(2), eq(10L), eq("host"),
+        eq(tags));
+    verify(request).addSeries(eq("gauge"), eq("load"),
+        AdditionalMatchers.aryEq(new long[]{1000L, 1010L}),
+        AdditionalMatchers.aryEq(new long[]{Double.doubleToRawLongBits(0.5),
+            Double.doubleToRawLongBits(0.5)}),
+        eq(true), eq(2), eq(0L), eq("host"), eq(tags));
+    verify(request).send();
+    assertEquals(0, batching.getPendingReports());
+  }
+
+  @Test
+  public void sendsPointsOneByOneToOtherRequests() throws Exception {
+    Transport.Request request = mock(Transport.Request.class);
+    when(transport.prepare()).thenReturn(request);
+    BatchingTransport batching = new BatchingTransport.Builder(transport).withBatchSize(2).build();
+
+    report(batching, 1000L, 3L);
+    report(batching, 1010L, 5L);
+    verify(request).addCounter(new DatadogCount("requests", 3L, 1000L, 10L, "host", tags.asList()));
+    verify(request).addCounter(new DatadogCount("requests", 5L, 1010L, 10L, "host", tags.asList()));
+    verify(request).addGauge(new DatadogGauge("load", 0.5, 1000L, "host", tags.asList()));
+    verify(request).addGauge(new DatadogGauge("load", 0.5, 1010L, "host", tags.asList()));
+    verify(request).send();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTransportsDroppingTimestamps() {
+    Transport udp = mock(Transport.class);
+    when(udp.dropsTimestamps()).thenReturn(true);
+    new BatchingTransport.Builder(new AsyncTransport.Builder(udp).build()).build();
+  }
+
+  @Test
+  public void sendsPendingReportsOnClose() throws Exception {
+    Transport.MultiPointRequest request = mock(Transport.MultiPointRequest.class);
+    when(transport.prepare()).thenReturn(request);
+    BatchingTransport batching = new BatchingTransport.Builder(transport).withBatchSize(6).build();
+
+    report(batching, 1000L, 3L);
+    Transport.Request objects = batching.prepare();
+    objects.addCounter(new DatadogCounter("counter", 1L, 1000L, "host", tags.asList()));
+    objects.send();
+
+    batching.close();
+    verify(request).addSeries(eq("count"), eq("requests"), any(long[].class), any(long[].class),
+        eq(false), eq(1), anyLong(), eq("host"), eq(tags));
+    verify(request).addCounter(new DatadogCounter("counter", 1L, 1000L, "host", tags.asList()));
+    verify(request).send();
+    verify(transport).close();
+  }
+
+  private void report(BatchingTransport batching, long epoch, long count) throws Exception {
+    Transport.PrimitiveRequest request = (Transport.PrimitiveRequest) batching.prepare();
+    request.addCount("requests", count, epoch, 10L, "host", tags);
+    request.addGauge("load", 0.5, epoch, "host", tags);
+    request.send();
+  }
+}
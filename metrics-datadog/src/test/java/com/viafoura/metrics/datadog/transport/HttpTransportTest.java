@@ -0,0 +1,53 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.viafoura.metrics.datadog.model.TagSet;
+import com.viafoura.metrics.serializer.JsonSerializer;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HttpTransportTest {
+
+  @Test
+  public void recordsTheEncodedBytesOfRequests() throws Exception {
+    final Executor executor = mock(Executor.class);
+    when(executor.execute(any(Request.class))).thenThrow(new IOException("refused"));
+    final MetricRegistry registry = new MetricRegistry();
+    final HttpTransport transport = new HttpTransport.Builder()
+        .withApiKey("key")
+        .withExecutor(executor)
+        .withMetricRegistry(registry)
+        .build();
+
+    final TagSet tags = TagSet.of(Collections.<String>emptyList());
+    final Transport.Request request = transport.prepare();
+    ((Transport.PrimitiveRequest) request).addGauge("température", 1L, 100L, null, tags);
+    try {
+      request.send();
+      fail("Expected the send to fail");
+    } catch (IOException e) {
+      // The payload is recorded before it is sent
+    }
+
+    final JsonSerializer serializer = new JsonSerializer();
+    serializer.startObject();
+    serializer.appendGauge("température", 1L, 100L, null, tags);
+    serializer.endObject();
+    final String body = serializer.getAsString();
+    assertEquals(body.length() + 1, body.getBytes("UTF-8").length);
+    assertEquals(body.getBytes("UTF-8").length, registry.histogram(
+        MetricRegistry.name(HttpTransport.class, "bytes")).getSnapshot().getMax());
+    assertEquals(1, registry.timer(
+        MetricRegistry.name(HttpTransport.class, "serialization")).getCount());
+  }
+}
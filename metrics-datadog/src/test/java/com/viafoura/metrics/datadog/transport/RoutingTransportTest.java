@@ -0,0 +1,123 @@
+package com.viafoura.metrics.datadog.transport;
+
+import com.viafoura.metrics.datadog.TaggedName;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoutingTransportTest {
+  private final Transport udp = mock(Transport.class);
+  private final Transport http = mock(Transport.class);
+  private final Transport tenant = mock(Transport.class);
+  private final Transport.PrimitiveRequest udpRequest = mock(Transport.PrimitiveRequest.class);
+  private final Transport.PrimitiveRequest httpRequest = mock(Transport.PrimitiveRequest.class);
+  private final Transport.Request tenantRequest = mock(Transport.Request.class);
+  private final TagSet acme = TagSet.of(Arrays.asList("tenant:acme"));
+
+  private RoutingTransport routing() throws Exception {
+    when(udp.prepare()).thenReturn(udpRequest);
+    when(http.prepare()).thenReturn(httpRequest);
+    when(tenant.prepare()).thenReturn(tenantRequest);
+    return new RoutingTransport.Builder(http)
+        .withTagRoute("tenant:acme", tenant)
+        .withRoute(Pattern.compile("^latency\\."), udp)
+        .build();
+  }
+
+  @Test
+  public void routesSeriesByTagThenName() throws Exception {
+    Transport.PrimitiveRequest request = (Transport.PrimitiveRequest) routing().prepare();
+    request.addGauge("latency.p99", 1.5, 1000L, "host", TagSet.EMPTY);
+    request.addGauge("latency.p99", 2.5, 1000L, "host", acme);
+    request.addCount("orders", 3L, 1000L, 10L, "host", TagSet.EMPTY);
+    request.addGauge(new DatadogGauge("sessions", 4L, 1000L, "host",
+        Collections.<String>emptyList()));
+    request.send();
+
+    verify(udpRequest).addGauge("latency.p99", 1.5, 1000L, "host", TagSet.EMPTY);
+    verify(udpRequest).send();
+    verify(tenantRequest).addGauge(new DatadogGauge("latency.p99", 2.5, 1000L, "host",
+        acme.asList()));
+    verify(tenantRequest).send();
+    verify(httpRequest).addCount("orders", 3L, 1000L, 10L, "host", TagSet.EMPTY);
+    verify(httpRequest).addGauge(new DatadogGauge("sessions", 4L, 1000L, "host",
+        Collections.<String>emptyList()));
+    verify(httpRequest).send();
+  }
+
+  @Test
+  public void onlySendsToTransportsWithSeries() throws Exception {
+    Transport.PrimitiveRequest request = (Transport.PrimitiveRequest) routing().prepare();
+    request.addCounter("orders", 3L, 1000L, "host", TagSet.EMPTY);
+    request.send();
+
+    verify(httpRequest).send();
+    verify(udp, never()).prepare();
+    verify(tenant, never()).prepare();
+  }
+
+  @Test
+  public void sendsToOtherTransportsWhenOneFails() throws Exception {
+    RoutingTransport routing = routing();
+    doThrow(new IllegalStateException("down")).when(udpRequest).send();
+    Transport.PrimitiveRequest request = (Transport.PrimitiveRequest) routing.prepare();
+    request.addGauge("latency.p99", 1.5, 1000L, "host", TagSet.EMPTY);
+    request.addGauge("sessions", 4L, 1000L, "host", TagSet.EMPTY);
+    try {
+      request.send();
+      fail("Failure of a transport not thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("down", e.getMessage());
+    }
+    verify(httpRequest).addGauge(any(CharSequence.class), anyLong(), anyLong(), anyString(),
+        any(TagSet.class));
+    verify(httpRequest).send();
+  }
+
+  @Test
+  public void isBackpressuredWhenAnyTransportIs() throws Exception {
+    RoutingTransport routing = routing();
+    when(udp.isBackpressured()).thenReturn(true);
+    assertTrue(routing.isBackpressured());
+
+    routing.close();
+    verify(udp).close();
+    verify(http).close();
+    verify(tenant).close();
+  }
+
+  @Test
+  public void routesSeriesByTheTagSetTheyWereBuiltFrom() throws Exception {
+    final TagSet[] routed = new TagSet[1];
+    when(http.prepare()).thenReturn(httpRequest);
+    RoutingTransport routing = new RoutingTransport.Builder(http)
+        .withRoute(new RoutingTransport.SeriesFilter() {
+          public boolean matches(CharSequence metric, TagSet tags) {
+            routed[0] = tags;
+            return false;
+          }
+        }, udp)
+        .build();
+    Transport.Request request = routing.prepare();
+    request.addGauge(new DatadogGauge(TaggedName.decode("sessions"), 4L, 1000L, "host", acme));
+
+    assertSame(acme, routed[0]);
+  }
+}
@@ -0,0 +1,106 @@
+package com.viafoura.metrics.serializer;
+
+import com.viafoura.metrics.datadog.model.DatadogCount;
+import com.viafoura.metrics.datadog.model.DatadogCounter;
+import com.viafoura.metrics.datadog.model.DatadogGauge;
+import com.viafoura.metrics.datadog.model.TagSet;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonSerializerTest {
+  private final List<String> tags = Arrays.asList("env:prod", "version:1.0.0", "path:/a\"b");
+
+  @Test
+  public void serializesPrimitivesLikeSeries() throws Exception {
+    JsonSerializer series = new JsonSerializer();
+    series.startObject();
+    series.appendGauge(new DatadogGauge("gauge", 1.5, 1000L, "host", tags));
+    series.appendGauge(new DatadogGauge("gauge.count", 2L, 1000L, null, null));
+    series.appendGauge(new DatadogGauge("gauge.max", Long.MAX_VALUE, 1000L, null, null));
+    series.appendCounter(new DatadogCounter("counter", 3L, 1000L, "host", tags));
+    series.appendCounter(new DatadogCount("count", 4L, 1000L, 10L, "host", tags));
+    series.appendCounter(new DatadogCount("count", 5L, 1000L, null, null, tags));
+    series.endObject();
+
+    JsonSerializer primitives = new JsonSerializer();
+    primitives.startObject();
+    primitives.appendGauge("gauge", 1.5, 1000L, "host", TagSet.of(tags));
+    primitives.appendGauge("gauge.count", 2.0, 1000L, null, TagSet.EMPTY);
+    primitives.appendGauge("gauge.max", Long.MAX_VALUE, 1000L, null, TagSet.EMPTY);
+    primitives.appendCounter("counter", 3L, 1000L, "host", TagSet.of(tags));
+    primitives.appendCount("count", 4L, 1000L, 10L, "host", TagSet.of(tags));
+    primitives.appendCount("count", 5L, 1000L, 0L, null, TagSet.of(tags));
+    primitives.endObject();
+
+    assertEquals(series.getAsString(), primitives.getAsString());
+  }
+
+  @Test
+  public void serializesSeriesOfSeveralPoints() throws Exception {
+    JsonSerializer serializer = new JsonSerializer();
+    serializer.startObject();
+    serializer.appendSeries("count", "count", new long[]{1000L, 1010L}, new long[]{4L, 5L}, false,
+        2, 10L, "host", TagSet.of(Arrays.asList("env:prod")));
+    serializer.appendSeries("gauge", "gauge", new long[]{1000L, 1010L},
+        new long[]{Double.doubleToRawLongBits(1.5), Double.doubleToRawLongBits(2.0)}, true,
+        2, 0L, null, TagSet.EMPTY);
+    serializer.endObject();
+
+    assertEquals("{\"series\":["
+            + "{\"metric\":\"count\",\"points\":[[1000,4],[1010,5]],\"type\":\"count\","
+            + "\"host\":\"host\",\"tags\":[\"env:prod\"],\"interval\":10},"
+            + "{\"metric\":\"gauge\",\"points\":[[1000,1.5],[1010,2]],\"type\":\"gauge\","
+            + "\"tags\":[]}]}",
+        serializer.getAsString());
+  }
+
+  @Test
+  public void defaultPrimitiveMethodsAppendSeriesObjects() throws Exception {
+    JsonSerializer primitives = new JsonSerializer();
+    primitives.startObject();
+    primitives.appendGauge("gauge", 1.5, 1000L, "host", TagSet.of(tags));
+    primitives.appendGauge("gauge.count", 2L, 1000L, null, TagSet.EMPTY);
+    primitives.appendCounter("counter", 3L, 1000L, "host", TagSet.of(tags));
+    primitives.appendCount("count", 4L, 1000L, 10L, "host", TagSet.of(tags));
+    primitives.appendCount("count", 5L, 1010L, 10L, "host", TagSet.of(tags));
+    primitives.endObject();
+
+    final JsonSerializer delegate = new JsonSerializer();
+    // Implements only the methods predating primitives, as external serializers do
+    Serializer objects = new Serializer() {
+      public void startObject() throws IOException {
+        delegate.startObject();
+      }
+
+      public void appendGauge(DatadogGauge gauge) throws IOException {
+        delegate.appendGauge(gauge);
+      }
+
+      public void appendCounter(DatadogCounter counter) throws IOException {
+        delegate.appendCounter(counter);
+      }
+
+      public void endObject() throws IOException {
+        delegate.endObject();
+      }
+
+      public String getAsString() throws IOException {
+        return delegate.getAsString();
+      }
+    };
+    objects.startObject();
+    objects.appendGauge("gauge", 1.5, 1000L, "host", TagSet.of(tags));
+    objects.appendGauge("gauge.count", 2L, 1000L, null, TagSet.EMPTY);
+    objects.appendCounter("counter", 3L, 1000L, "host", TagSet.of(tags));
+    objects.appendSeries("count", "count", new long[]{1000L, 1010L}, new long[]{4L, 5L}, false,
+        2, 10L, "host", TagSet.of(tags));
+    objects.endObject();
+
+    assertEquals(primitives.getAsString(), objects.getAsString());
+  }
+}